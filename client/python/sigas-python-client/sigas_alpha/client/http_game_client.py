@@ -18,7 +18,8 @@ class HTTPGameClient:
     def __init__(self,
                  api_url: str,
                  api_token: str,
-                 heartbeat_period: float = 2.0
+                 heartbeat_period: float = 2.0,
+                 fragment_size: int = 16384
                  ) -> None:
         self.api_url = api_url
         self.api_token = api_token
@@ -40,6 +41,9 @@ class HTTPGameClient:
         self.last_heartbeat_time = 0
         self.heartbeat_received = False
 
+        self.fragment_size = fragment_size
+        self._fragments: dict[int, bytearray] = {}
+
     def create_game(self, game_name: str, alias: Optional[str] = None, game_options: GameOptions = GameOptions()) -> tuple[Game, Player]:
         request_body = {
             "name": game_name,
@@ -151,31 +155,38 @@ class HTTPGameClient:
                     body = message.body()
                     complete_message = message.typ.encode("ASCII") + message.flags.encode("ASCII") + message.client_id.encode("ASCII") + struct.pack(">I", len(body)) + body
                     yield complete_message
-                if self.game_master:
-                    now = time.time()
-                    if self.last_heartbeat_time + self.heartbeat_period < now:
-                        if not self.heartbeat_received:
-                            # TODO what to do if we haven't got
-                            pass
-
-                        self.last_heartbeat_time = now
-                        self.heartbeat_next_sequence += 1
-                        self.heartbeat_received = False
-                        self._send_queue.put(HeartBeatMessage(self.heartbeat_next_sequence))
             except Empty:
                 pass
 
+            # Broker reports player as disconnected if it does not hear from it for few heartbeat periods
+            now = time.time()
+            if self.last_heartbeat_time + self.heartbeat_period < now:
+                if not self.heartbeat_received:
+                    # TODO what to do if we haven't got
+                    pass
+
+                self.last_heartbeat_time = now
+                self.heartbeat_next_sequence += 1
+                self.heartbeat_received = False
+                self._send_queue.put(HeartBeatMessage(self.heartbeat_next_sequence))
+
     def _inbound_connection_loop(self, url: str, token: str) -> None:
         self._receiving_thread_running = True
         try:
             while self._do_run:
                 try:
-                    r = requests.get(url, headers={"Authorization": f"Token {token}", "Transfer-Encoding": "chunked"}, data='', stream=True)
+                    r = requests.get(url, headers={"Authorization": f"Token {token}", "Transfer-Encoding": "chunked", "X-Sigas-Fragment-Size": str(self.fragment_size)}, data='', stream=True)
+                    self._fragments = {}
                     for chunk in (r.raw.read_chunked()):
+                        if chunk[0:4] == b"FRAG":
+                            chunk = self._reassemble(chunk)
+                            if chunk is None:
+                                continue
+
                         typ = chunk[0:4].decode("ASCII")
                         flags = chunk[4:6].decode("ASCII")
                         client_id = chunk[6:8].decode("ASCII")
-                        l = struct.unpack(">I", chunk[4:8])[0]
+                        l = struct.unpack(">I", chunk[8:12])[0]
                         body = chunk[12:12 + l]
 
                         message = create_message(typ, client_id, flags, body)
@@ -195,6 +206,20 @@ class HTTPGameClient:
             logger.warning(f"{token}: Finished inbound streaming loop")
             self._receiving_thread_running = False
 
+    def _reassemble(self, chunk: bytes) -> Optional[bytes]:
+        l = struct.unpack(">I", chunk[8:12])[0]
+        fragment_id = struct.unpack(">I", chunk[12:16])[0]
+        if l == 4:
+            # Sender of the message went away before all of it arrived
+            self._fragments.pop(fragment_id, None)
+            return None
+        data = self._fragments.setdefault(fragment_id, bytearray())
+        data += chunk[16:12 + l]
+        if len(data) >= 12 and len(data) >= 12 + struct.unpack(">I", data[8:12])[0]:
+            del self._fragments[fragment_id]
+            return bytes(data)
+        return None
+
     def send_message(self, message: MessageExtension) -> 'HTTPGameClient':
         self._send_queue.put(message)
         return self
@@ -28,6 +28,9 @@ public class BaseClientHandler implements ClientHandler {
         open = true;
     }
 
+    @Override
+    public boolean isOpen() { return open; }
+
     @Override
     public void close() {
         open = false;
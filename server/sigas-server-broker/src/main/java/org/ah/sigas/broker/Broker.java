@@ -4,17 +4,18 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.net.StandardSocketOptions;
 import java.net.URI;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.HashMap;
-import java.util.Iterator;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.ah.sigas.broker.game.Game;
+import org.ah.sigas.broker.util.TimerWheel;
 
 public class Broker {
 
@@ -22,17 +23,28 @@ public class Broker {
     public static boolean DEBUG = true;
     public static boolean TRACE = true;
 
+    public static final int MAX_ACCEPTS_PER_SELECTION = 64;
+
     private int serverPort;
     private int internalPort;
     private URI hubURI;
+    private int reactorCount = 1;
+    private BusyPoll busyPoll;
+    private boolean reusePort = false;
 
-    private ServerSocketChannel serverChannel;
+    private List<ServerSocketChannel> serverChannels = new ArrayList<>();
     private ServerSocketChannel internalChannel;
-    private Selector selector;
 
-    private Map<String, Game> games = new HashMap<>();
+    private Reactor acceptor;
+    private Reactor control;
+    private Reactor[] reactors;
+    private int nextReactor = 0;
+
+    private Engine engine;
 
-    private boolean doStop = false;
+    private Map<String, Game> games = new ConcurrentHashMap<>();
+
+    private volatile boolean doStop = false;
 
     public Broker(int serverPort, int internalPort, URI hubURI) {
         this.serverPort = serverPort;
@@ -41,22 +53,97 @@ public class Broker {
     }
 
     private void init() throws IOException {
-        selector = Selector.open();
-        serverChannel = ServerSocketChannel.open();
-        serverChannel.configureBlocking(false);
-        serverChannel.socket().bind(new InetSocketAddress((InetAddress)null, serverPort));
-        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        reactors = new Reactor[reactorCount];
+        for (int i = 0; i < reactorCount; i++) {
+            reactors[i] = new Reactor(this, "sigas-reactor-" + i);
+            reactors[i].setBusyPoll(busyPoll);
+        }
+        if (reactorCount == 1 || reusePort) {
+            acceptor = reactors[0];
+        } else {
+            acceptor = new Reactor(this, "sigas-acceptor");
+        }
+
+        control = new Reactor(this, "sigas-control");
+
+        if (reusePort) {
+            // Each reactor accepts on its own socket; kernel spreads incoming connections between them
+            for (Reactor reactor : reactors) {
+                openServerChannel(serverPort, reactor);
+            }
+        } else {
+            openServerChannel(serverPort, acceptor);
+        }
+        internalChannel = openServerChannel(internalPort, control);
+    }
 
-        internalChannel = ServerSocketChannel.open();
-        internalChannel.configureBlocking(false);
-        internalChannel.socket().bind(new InetSocketAddress((InetAddress)null, internalPort));
-        internalChannel.register(selector, SelectionKey.OP_ACCEPT);
+    private ServerSocketChannel openServerChannel(int port, Reactor reactor) throws IOException {
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.configureBlocking(false);
+        if (reusePort) {
+            channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        }
+        channel.bind(new InetSocketAddress((InetAddress)null, port));
+        channel.register(reactor.getSelector(), SelectionKey.OP_ACCEPT);
+        if (port == serverPort) {
+            serverChannels.add(channel);
+        }
+        return channel;
     }
 
     public Map<String, Game> getGames() { return games; }
     public URI getHubURI() { return hubURI; }
+    public int getServerPort() { return serverPort; }
+    public int getInternalPort() { return internalPort; }
+
+    public Engine getEngine() { return engine; }
+    public void setEngine(Engine engine) { this.engine = engine; }
+
+    public int getReactorCount() { return reactorCount; }
+    public void setReactorCount(int reactorCount) {
+        if (reactorCount < 1) {
+            throw new IllegalArgumentException("Reactor count must be at least 1; got " + reactorCount);
+        }
+        this.reactorCount = reactorCount;
+    }
+
+    public BusyPoll getBusyPoll() { return busyPoll; }
+
+    /**
+     * Makes game reactors spin on selector instead of blocking. Control plane and separate acceptor
+     * still block. Null (default) switches busy polling off.
+     */
+    public void setBusyPoll(BusyPoll busyPoll) { this.busyPoll = busyPoll; }
+
+    public Reactor[] getReactors() { return reactors; }
+
+    public boolean isReusePort() { return reusePort; }
+
+    /**
+     * Makes every reactor bind its own server socket with SO_REUSEPORT instead of having one acceptor,
+     * and lets other broker processes bind the same server and internal ports.
+     */
+    public void setReusePort(boolean reusePort) {
+        if (reusePort) {
+            try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+                if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+                    throw new IllegalArgumentException("SO_REUSEPORT is not supported on this platform");
+                }
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot check for SO_REUSEPORT support; " + e.getMessage(), e);
+            }
+        }
+        this.reusePort = reusePort;
+    }
+
+    public boolean isStopping() { return doStop; }
 
     public void loop() {
+        if (engine != null) {
+            engine.loop();
+            return;
+        }
+
         try {
             init();
         } catch (Exception e) {
@@ -65,96 +152,163 @@ public class Broker {
             System.exit(1);
         }
 
-        while (!doStop) {
-            try {
+        List<Thread> reactorThreads = new ArrayList<>();
 
-                selector.select(200);
-                Set<SelectionKey> keys = selector.selectedKeys();
-
-                Iterator<SelectionKey> keyIterator = keys.iterator();
-                while (keyIterator.hasNext()) {
-                    SelectionKey key = keyIterator.next();
-                    keyIterator.remove();
-                    try {
-                        if (key.isValid()) {
-                            if (key.isAcceptable()) {
-                                accept(key);
-                            } else if (key.isReadable()) {
-                                read(key);
-                            } else if (key.isWritable()) {
-                                write(key);
-                            }
-                        }
-                    } catch (Exception e) {
-                        System.err.println("*** Closing channel: error while handling selection key. Channel: " + key.channel() + "; " + e.getClass().getCanonicalName() + "(" + (e.getMessage() != null ? e.getMessage() : "") + ")");
-                        e.printStackTrace();
-                        closeChannel(key);
-                    }
-                }
-            } catch (Exception e) {
-                System.err.println("Got exception " + e.getMessage());
-                e.printStackTrace();
+        Thread controlThread = new Thread(control, control.getName());
+        reactorThreads.add(controlThread);
+        controlThread.start();
+
+        for (Reactor reactor : reactors) {
+            if (reactor != acceptor) {
+                Thread reactorThread = new Thread(reactor, reactor.getName());
+                reactorThreads.add(reactorThread);
+                reactorThread.start();
             }
         }
-        for (SelectionKey key : selector.keys()) {
+        if (reactors.length > 1 && INFO) { System.out.println("Started " + reactors.length + " reactors"); }
+
+        acceptor.run();
+
+        for (Thread reactorThread : reactorThreads) {
             try {
-                key.channel().close();
-            } catch (IOException ignore) { }
+                reactorThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
     public void stop() {
         doStop = true;
+        if (engine != null) {
+            engine.stop();
+        } else if (acceptor != null) {
+            acceptor.wakeup();
+            control.wakeup();
+            for (Reactor reactor : reactors) {
+                reactor.wakeup();
+            }
+        }
     }
 
-    private void accept(SelectionKey selectedKey) throws IOException {
-        if (selectedKey.channel() == serverChannel) {
-            SocketChannel clientChannel = serverChannel.accept();
-            if (clientChannel == null) {
-                System.err.println("Server channel cannot be accepted");
-                return;
-            }
+    /**
+     * Accepts all pending connections (up to {@link #MAX_ACCEPTS_PER_SELECTION}) of selected server channel.
+     */
+    void accept(Reactor reactor, SelectionKey selectedKey) throws IOException {
+        ServerSocketChannel channel = (ServerSocketChannel)selectedKey.channel();
+        boolean internal = channel == internalChannel;
 
+        int accepted = 0;
+        SocketChannel clientChannel = channel.accept();
+        while (clientChannel != null) {
             clientChannel.configureBlocking(false);
-            SelectionKey key = clientChannel.register(selector, SelectionKey.OP_READ); // Expecting other side to send some data first
             if (DEBUG) { System.out.println("*** Accepting channel " + logChannel(clientChannel)); }
 
-            key.attach(new HTTPServerRequestHandler(this));
-        } else {
-            SocketChannel clientChannel = internalChannel.accept();
-            if (clientChannel == null) {
-                System.err.println("Internal channel cannot be accepted");
-                return;
+            if (internal) {
+                // Internal API is served by control plane thread only
+                control.register(clientChannel, new HTTPInternalRequestHandler(this));
+            } else if (reusePort) {
+                reactor.register(clientChannel, new HTTPServerRequestHandler(this));
+            } else {
+                nextReactor().register(clientChannel, new HTTPServerRequestHandler(this));
             }
 
-            clientChannel.configureBlocking(false);
-            SelectionKey key = clientChannel.register(selector, SelectionKey.OP_READ); // Expecting other side to send some data first
-            if (DEBUG) { System.out.println("*** Accepting channel " + logChannel(clientChannel)); }
-
-            key.attach(new HTTPInternalRequestHandler(this));
+            accepted++;
+            clientChannel = accepted < MAX_ACCEPTS_PER_SELECTION ? channel.accept() : null;
+        }
+        if (accepted == 0 && TRACE) {
+            System.out.println("*** Nothing to accept on " + channel);
         }
+    }
 
+    private Reactor nextReactor() {
+        Reactor reactor = reactors[nextReactor];
+        nextReactor = (nextReactor + 1) % reactors.length;
+        return reactor;
     }
 
-    private void read(SelectionKey key) throws IOException {
-        SocketChannel clientChannel = (SocketChannel) key.channel();
+    /**
+     * Returns reactor given game is pinned to. All inbound and outbound streams of one game
+     * are handled by that reactor only.
+     */
+    public Reactor getReactorFor(String gameId) {
+        return reactors[(gameId.hashCode() & 0x7fffffff) % reactors.length];
+    }
 
-        Handler handler = (Handler)key.attachment();
-        if (handler == null) {
-            throw new IOException("Read: Handler is missing for the channel: " + logChannel((SocketChannel)key.channel()));
+    /**
+     * Executes command on the thread given game is pinned to - straight away if already on it,
+     * otherwise it is queued for that reactor's next loop iteration.
+     */
+    public void executeForGame(String gameId, Runnable command) {
+        if (engine != null) {
+            engine.executeForGame(gameId, command);
+        } else {
+            Reactor reactor = getReactorFor(gameId);
+            if (reactor.isInReactorThread()) {
+                command.run();
+            } else {
+                reactor.execute(command);
+            }
         }
+    }
 
-        handler.read(key, clientChannel);
+    /**
+     * Same as {@link #executeForGame(String, Runnable)} but when already on game's thread command runs
+     * only after everything else in current loop iteration.
+     */
+    public void executeDeferredForGame(String gameId, Runnable command) {
+        if (engine != null) {
+            engine.executeDeferredForGame(gameId, command);
+        } else {
+            getReactorFor(gameId).executeDeferred(command);
+        }
     }
 
-    private void write(SelectionKey key) throws IOException {
-        Handler handler = (Handler)key.attachment();
-        if (handler == null) {
-            throw new IOException("Write: Handler is missing for the channel: " + logChannel((SocketChannel)key.channel()));
+    /**
+     * Schedules timer on the thread given game is pinned to. Timer's callback is invoked on that thread, too.
+     */
+    public void schedule(String gameId, TimerWheel.Timer timer, long deadline) {
+        if (engine != null) {
+            engine.schedule(gameId, timer, deadline);
+        } else {
+            Reactor reactor = getReactorFor(gameId);
+            if (reactor.isInReactorThread()) {
+                reactor.getTimers().schedule(timer, deadline);
+            } else {
+                reactor.execute(() -> reactor.getTimers().schedule(timer, deadline));
+            }
+        }
+    }
+
+    /**
+     * Runs task on control plane thread - straight away if already on it.
+     */
+    public void executeOnControlPlane(Runnable task) {
+        if (control == null || control.isInReactorThread()) {
+            task.run();
+        } else {
+            control.execute(task);
+        }
+    }
+
+    /**
+     * Makes sure that request for given game continues on the game's reactor.
+     *
+     * @return true if request is handed over to another reactor and current thread must not process it any further
+     */
+    public boolean bindToGame(SelectionKey key, String gameId, HTTPRequestHandler handler) {
+        if (engine != null) {
+            return engine.bindToGame(key, gameId, handler);
         }
+        Reactor reactor = getReactorFor(gameId);
+        if (reactor.getSelector() == key.selector()) {
+            return false;
+        }
+        if (TRACE) { System.out.println("*** Handing over " + key.channel() + " to " + reactor.getName() + " for game " + gameId); }
 
-        SocketChannel clientChannel = (SocketChannel) key.channel();
-        handler.write(key, clientChannel);
+        key.cancel();
+        reactor.adopt((SocketChannel)key.channel(), handler);
+        return true;
     }
 
     public void closeChannel(SelectionKey key) throws IOException {
@@ -0,0 +1,47 @@
+package org.ah.sigas.broker;
+
+/**
+ * Settings for reactors which spin on {@link java.nio.channels.Selector#selectNow()} instead of
+ * blocking in select. When there is nothing to do reactor backs off in three phases: it spins for
+ * given number of idle iterations, then yields for given number of iterations and then parks
+ * in select with short timeout until there is work again.
+ */
+public class BusyPoll {
+
+    private int spins;
+    private int yields;
+    private long parkMillis;
+
+    public BusyPoll(int spins, int yields, long parkMillis) {
+        if (spins < 0 || yields < 0 || parkMillis < 1) {
+            throw new IllegalArgumentException("Spins and yields must not be negative and park needs to be at least 1ms; got " + spins + "," + yields + "," + parkMillis);
+        }
+        this.spins = spins;
+        this.yields = yields;
+        this.parkMillis = parkMillis;
+    }
+
+    public int getSpins() { return spins; }
+    public int getYields() { return yields; }
+    public long getParkMillis() { return parkMillis; }
+
+    /**
+     * Parses &lt;spins&gt;,&lt;yields&gt;,&lt;park-ms&gt; - for instance "10000,100,1".
+     */
+    public static BusyPoll parse(String value) {
+        String[] parts = value.split(",");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Expected <spins>,<yields>,<park-ms> but got '" + value + "'");
+        }
+        try {
+            return new BusyPoll(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()), Long.parseLong(parts[2].trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Expected <spins>,<yields>,<park-ms> but got '" + value + "'");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return spins + " spins, " + yields + " yields, " + parkMillis + "ms park";
+    }
+}
@@ -6,5 +6,6 @@ public interface ClientHandler extends Handler {
     public SelectionKey getAssociatedKey();
 
     public void open(SelectionKey associatedKey);
+    public boolean isOpen();
     public void close();
 }
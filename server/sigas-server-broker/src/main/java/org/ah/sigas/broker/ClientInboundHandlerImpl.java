@@ -10,31 +10,44 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.WritableByteChannel;
 
 import org.ah.sigas.broker.game.Client;
+import org.ah.sigas.broker.game.Game;
 
 public class ClientInboundHandlerImpl extends BaseClientHandler {
 
+    /**
+     * Most this connection may read in one go before others get their turn. What is left stays in the socket
+     * and is picked up in the next round.
+     */
+    public static final int READ_BUDGET_BYTES = 65536;
+    public static final int READ_BUDGET_MESSAGES = 256;
 
     protected ByteBuffer buffer = ByteBuffer.allocate(16384);
 
-    private byte[] bytes;
-    private int pos = 0;
-    private int max = 0;
+    private FrameDecoder decoder;
 
-    private int cs = 0;  // chunk state
-    private int chunkLen = 0;
-
-    private int ms = 0; // message state
-    private int msgLen = 0;
-    private boolean error = false;
-    private boolean gracefulEnd = false;
-
-    private byte[] messageType = new byte[4];
-    private byte[] messageHeader = new byte[4];
-    private byte[] messageBytes;
-    private int ptr = 0;
+    private int messagesRead = 0;
 
     public ClientInboundHandlerImpl(Broker broker, Client client) {
         super(broker, client);
+        decoder = new FrameDecoder(new FrameDecoder.Listener() {
+            @Override public void message(int type, int header, ByteBuffer body) throws IOException {
+                client.receivedMessage(type, header, body);
+                messagesRead++;
+            }
+
+            @Override public boolean messageStarted(int type, int header, int length) throws IOException {
+                return client.receivedMessageStart(type, header, length);
+            }
+
+            @Override public void messagePart(ByteBuffer part, boolean last) throws IOException {
+                client.receivedMessagePart(part, last);
+                if (last) {
+                    messagesRead++;
+                }
+            }
+        }, client.getGame().getGameOptions().getMaxMessageSize());
+        // Messages which do not fit the read buffer are passed on while they are being received
+        decoder.setStreamThreshold(buffer.capacity());
     }
 
     public ByteBuffer getBuffer() { return buffer; }
@@ -42,25 +55,33 @@ public class ClientInboundHandlerImpl extends BaseClientHandler {
     @Override
     public void open(SelectionKey associatedKey) {
         super.open(associatedKey);
+        if (client.isReadingPaused()) {
+            associatedKey.interestOps(associatedKey.interestOps() & ~SelectionKey.OP_READ);
+        }
         buffer.clear();
+        resetDecoder();
+    }
 
-        pos = 0;
-        max = 0;
-
-        cs = 0;
-        chunkLen = 0;
-
-        ms = 0;
-        msgLen = 0;
-        error = false;
-        gracefulEnd = false;
+    @Override
+    public void close() {
+        super.close();
+        resetDecoder();
+    }
 
-        ptr = 0;
+    private void resetDecoder() {
+        if (decoder.isStreaming()) {
+            client.receivedMessageAborted();
+        }
+        decoder.reset();
     }
 
     @Override
     public void read(SelectionKey key, ReadableByteChannel channel) throws IOException {
         try {
+            if (!client.getGame().hasReadBudget(Reactor.currentRound())) {
+                if (Broker.TRACE) { log("Game used up its share of this round; deferring read"); }
+                return;
+            }
             int read = channel.read(buffer);
             processInput(key, channel, read);
         } catch (SocketException e) {
@@ -72,174 +93,48 @@ public class ClientInboundHandlerImpl extends BaseClientHandler {
         }
     }
 
-    private boolean readMessage() throws IOException {
-        int l = msgLen - ptr;
-        if (l > max - pos) {
-            l = max - pos;
-        }
-        if (l > chunkLen) {
-            l = chunkLen;
-        }
-        System.arraycopy(bytes, pos, messageBytes, ptr, l);
-
-        pos += l;
-        ptr += l;
-        chunkLen -= l;
-
-        if (ptr >= msgLen) {
-            client.receivedMessage(new String(messageType), new String(messageHeader), messageBytes);
-            return true;
-        }
-        return false;
-    }
-
-    private void parseMessage() throws IOException {
-        while (pos < max && chunkLen > 0) {
-            byte b = bytes[pos];
-            if (ms != 12) {
-                pos++;
-                chunkLen--;
-            }
-
-            if (ms == 0) {
-                messageType[0] = b;
-                ms = 1;
-            } else if (ms == 1) {
-                messageType[1] = b;
-                ms = 2;
-            } else if (ms == 2) {
-                messageType[2] = b;
-                ms = 3;
-            } else if (ms == 3) {
-                messageType[3] = b;
-                ms = 4;
-            } else if (ms == 4) {
-                messageHeader[0] = b;
-                ms = 5;
-            } else if (ms == 5) {
-                messageHeader[1] = b;
-                ms = 6;
-            } else if (ms == 6) {
-                messageHeader[2] = b;
-                ms = 7;
-            } else if (ms == 7) {
-                messageHeader[3] = b;
-                ms = 8;
-            } else if (ms == 8) {
-                ptr = 0;
-                msgLen = b;
-                ms = 9;
-            } else if (ms == 9) {
-                msgLen = msgLen * 8 + b;
-                ms = 10;
-            } else if (ms == 10) {
-                msgLen = msgLen * 8 + b;
-                ms = 11;
-            } else if (ms == 11) {
-                msgLen = msgLen * 8 + b;
-
-                messageBytes = new byte[msgLen];
-
-                if (readMessage()) {
-                    ms = 0;
-                } else {
-                    ms = 12;
-                }
-            } else if (ms == 12) {
-                if (readMessage()) {
-                    ms = 0;
-                }
-            }
-        }
-    }
-
-    private void parse() throws IOException {
-        while (pos < max && !error) {
-            byte b = bytes[pos];
-            pos++;
-            if (cs == 0) {
-                // beginning of chunk
-                if (b >= '0' && b <= '9') {
-                    chunkLen = chunkLen * 16 + (b - '0');
-                } else if (b >= 'A' && b <= 'F') {
-                    chunkLen = chunkLen * 16 + (b - 'A' + 10);
-                } else if (b >= 'a' && b <= 'f') {
-                    chunkLen = chunkLen * 16 + (b - 'a' + 10);
-                } else if (b == 13) {
-                    cs = 1;
-                } else  {
-                    if (Broker.DEBUG) { log("Wrong input in Chunked-Encoding size, expected '0-9A-F' or CR; got '" + Integer.toString(b) + "'", true); }
-                    error = true;
-                }
-            } else if (cs == 1) {
-                if (b == 10) {
-                    if (Broker.TRACE) { log("Got chunk of " + chunkLen + " bytes"); }
-                    if (chunkLen == 0) {
-                        error = true;
-                        gracefulEnd = true;
-                    } else {
-                        parseMessage();
-                        if (chunkLen == 0) {
-                            cs = 3;
-                        } else {
-                            cs = 2;
-                        }
-                    }
-                } else {
-                    if (Broker.DEBUG) { log("Wrong input after CR in Chunked-Encoding size; expected LF and got '" + Integer.toString(b) + "'", true); }
-                    error = true;
-                }
-            } else if (cs == 2) {
-                parseMessage();
-
-                if (chunkLen == 0) {
-                    cs = 3;
-                }
-            } else if (cs == 3) {
-                if (b == 13) {
-                    cs = 4;
-                } else {
-                    if (Broker.DEBUG) { log("Expected chunk end (LF) but got '" + Integer.toString(b) + "'", true); }
-                    error = true;
-                }
-            } else if (cs == 4) {
-                if (b == 10) {
-                    if (Broker.TRACE) { log("Completed chunk"); }
-                    cs = 0;
-                } else {
-                    if (Broker.DEBUG) { log("Expected chunk (CR) end but got '" + Integer.toString(b) + "'", true); }
-                    error = true;
-                }
-            }
-        }
-    }
-
+    /**
+     * Parses what is in the buffer and keeps reading until channel is empty or this connection's
+     * or its game's budget for current round is used up.
+     */
     public void processInput(SelectionKey key, ReadableByteChannel channel, int initalReadCount) throws IOException {
+        Game game = client.getGame();
+        long round = Reactor.currentRound();
+        int bytesRead = 0;
+        messagesRead = 0;
+
         int read = initalReadCount;
         while (read > 0) {
 
             buffer.flip();
-
-            bytes = buffer.array();
-            pos = 0;
-            max = buffer.limit();
-
-            parse();
-
+            FrameDecoder.Result result = decoder.decode(buffer);
             buffer.clear();
-            if (error) {
-                if (gracefulEnd) {
+
+            if (result != FrameDecoder.Result.MORE) {
+                if (result == FrameDecoder.Result.END) {
                     buffer.put("HTTP/1.1 204 OK".getBytes()).put(CRLF);
                     buffer.put(CRLF);
 
                     buffer.flip();
                     ((WritableByteChannel)channel).write(buffer);
                 } else {
+                    if (Broker.DEBUG) { log(decoder.getError(), true); }
                     broker.closeChannel(key);
                 }
                 return;
             }
 
+            bytesRead += read;
+            game.consumeReadBudget(read);
+            if (client.isReadingPaused()) {
+                if (Broker.TRACE) { log("Reading paused after " + bytesRead + " bytes and " + messagesRead + " messages"); }
+                return;
+            }
+            if (bytesRead >= READ_BUDGET_BYTES || messagesRead >= READ_BUDGET_MESSAGES || !game.hasReadBudget(round)) {
+                if (Broker.TRACE) { log("Read budget used up after " + bytesRead + " bytes and " + messagesRead + " messages"); }
+                return;
+            }
+
             read = channel.read(buffer);
         }
     }
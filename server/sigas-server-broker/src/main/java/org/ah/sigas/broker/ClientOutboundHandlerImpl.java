@@ -5,15 +5,148 @@ import static org.ah.sigas.broker.SimpleHTTPResponseHandler.CRLF;
 import java.io.IOException;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.ah.sigas.broker.game.Client;
+import org.ah.sigas.broker.game.GameOptions;
+import org.ah.sigas.broker.message.CoalescedMessage;
 import org.ah.sigas.broker.message.Message;
+import org.ah.sigas.broker.message.StreamedMessage;
+import org.ah.sigas.broker.util.XorDelta;
 
 public class ClientOutboundHandlerImpl extends BaseClientHandler {
 
-    protected ByteBuffer buffer = ByteBuffer.allocate(16384);
+    /**
+     * Most messages handed to the socket in one (gathering) write.
+     */
+    public static final int MAX_MESSAGES_PER_WRITE = 64;
+
+    /**
+     * Request header of outbound stream with which client asks for large messages to be sent in fragments
+     * of at most given number of bytes. Clients which do not send it get every message whole.
+     */
+    public static final String FRAGMENT_SIZE_HEADER = "x-sigas-fragment-size";
+    public static final int MIN_FRAGMENT_SIZE = 256;
+
+    /**
+     * Request header of outbound stream with which client asks for messages with bodies longer than given
+     * number of bytes to be sent deflated (with game's preset dictionary) in DFLT messages.
+     */
+    public static final String DEFLATE_HEADER = "x-sigas-deflate";
+    public static final int MIN_DEFLATE_THRESHOLD = 64;
+
+    /**
+     * Request header of outbound stream with which client says it can apply DLTA messages. Messages of
+     * game's delta types are then sent as deltas against the previous body with the same key.
+     */
+    public static final String DELTA_HEADER = "x-sigas-delta";
+
+    public static final byte DELTA_FULL = 0;
+    public static final byte DELTA_XOR = 1;
+
+    /**
+     * Most large messages being sent in fragments at the same time.
+     */
+    public static final int MAX_TRANSFERS = 16;
+
+    /**
+     * Most streamed messages among transfers. Streamed message can wait for its body for as long as its
+     * sender takes, so the other transfers are kept for messages which are whole and never wait.
+     */
+    public static final int MAX_STREAMS = MAX_TRANSFERS / 2;
+
+    private static final int FRAGMENT_PREFIX_LENGTH = 48;
+
+    private static final int FRAG_TYPE = Message.intOf("FRAG");
+    private static final int DLTA_TYPE = Message.intOf("DLTA");
+    private static final short NO_FLAGS = 0x2020; // two spaces
+
+    /**
+     * Buffers still to be written out - from pendingStart to pendingEnd. Each message is one shared
+     * encoded frame (see {@link Message#retain()}) which is released once it is fully written; fragments
+     * are prefix, slice of body and chunk end. Message sent in fragments counts as sent only once its
+     * last fragment is written and streamed message's body segment goes back to the pool once its last
+     * slice is written.
+     */
+    private ByteBuffer[] pending = new ByteBuffer[MAX_MESSAGES_PER_WRITE + 1 + MAX_TRANSFERS * 3];
+    private Message[] pendingMessages = new Message[pending.length];
+    private ByteBuffer[] pendingSegments = new ByteBuffer[pending.length];
+    private boolean[] pendingLastFragments = new boolean[pending.length];
+    private int pendingStart = 0;
+    private int pendingEnd = 0;
+    private ByteBuffer headers = ByteBuffer.allocate(256);
+
+    private int fragmentSize = 0;
+    private int nextTransferId = 0;
+    private List<Transfer> transfers = new ArrayList<>();
+    private int streams = 0;
+    private ArrayDeque<StreamedMessage> waitingStreams = new ArrayDeque<>();
+    private ByteBuffer fragmentPrefixes = ByteBuffer.allocate(MAX_TRANSFERS * FRAGMENT_PREFIX_LENGTH);
+
+    /**
+     * Large message on its way out in fragments. Payload is message as encoded in its frame - header
+     * followed by body - without chunk framing. Streamed message's payload is its header and then
+     * each body segment in turn as it arrives.
+     */
+    private static class Transfer {
+        private Message message;
+        private int id;
+        private ByteBuffer payload;
+        private StreamedMessage stream;
+        private ByteBuffer segment;
+
+        private Transfer(Message message, int id, ByteBuffer frame) {
+            this.message = message;
+            this.id = id;
+            payload = frame;
+            while (payload.get() != '\n') { }
+            if (message instanceof StreamedMessage) {
+                stream = (StreamedMessage)message;
+            } else {
+                payload.limit(payload.limit() - 2);
+            }
+        }
+
+        /**
+         * Moves on to next body segment of streamed message if payload is used up.
+         *
+         * @return true if there is something to send
+         */
+        private boolean hasPayload() {
+            if (!payload.hasRemaining() && stream != null) {
+                ByteBuffer next = stream.pollSegment();
+                if (next != null) {
+                    segment = next;
+                    payload = next;
+                }
+            }
+            return payload.hasRemaining();
+        }
+
+        private boolean isComplete() {
+            return !payload.hasRemaining() && (stream == null || stream.isComplete());
+        }
+    }
+
+    private int deflateThreshold = 0;
+
+    private boolean deltaEnabled = false;
+    private Map<Long, DeltaBase> deltaBases = new HashMap<>();
+
+    /**
+     * Last body sent to this client with given type, flags and client id.
+     */
+    private static class DeltaBase {
+        private byte[] body;
+        private int sinceKeyframe = 0;
+    }
 
     private boolean headersSent = false;
 
@@ -25,77 +158,396 @@ public class ClientOutboundHandlerImpl extends BaseClientHandler {
 
     public void setAssociatedKey(SelectionKey associatedKey) { this.associatedKey = associatedKey; }
 
+    public int getFragmentSize() { return fragmentSize; }
+
+    public int getDeflateThreshold() { return deflateThreshold; }
+
+    public boolean isDeltaEnabled() { return deltaEnabled; }
 
-    public ByteBuffer getBuffer() { return buffer; }
+    /**
+     * Sets if client can take delta encoded messages. Applies to stream opened next; every new stream
+     * starts with full messages.
+     */
+    public void setDeltaEnabled(boolean deltaEnabled) { this.deltaEnabled = deltaEnabled; }
 
+    /**
+     * Sets body length above which messages are sent deflated; 0 to send them as they are. Applies
+     * to stream opened next.
+     */
+    public void setDeflateThreshold(int deflateThreshold) {
+        this.deflateThreshold = deflateThreshold > 0 ? Math.max(MIN_DEFLATE_THRESHOLD, deflateThreshold) : 0;
+    }
+
+    /**
+     * Sets most bytes of message (with its header) sent in one fragment; 0 for no fragmentation. Applies
+     * to stream opened next.
+     */
+    public void setFragmentSize(int fragmentSize) {
+        this.fragmentSize = fragmentSize > 0 ? Math.max(MIN_FRAGMENT_SIZE, fragmentSize) : 0;
+    }
+
+    /**
+     * Writes out whatever is pending and then next batches of messages from client's queue. Each batch
+     * goes out in one gathering write. When socket cannot take more, stops exactly where it is and
+     * waits for OP_WRITE to continue; OP_WRITE interest is kept only while there are bytes left to write.
+     */
     @Override
     public void write(SelectionKey key, WritableByteChannel channel) throws IOException {
         try {
-            if (!headersSent) {
-                buffer.clear();
-                buffer.put("HTTP/1.1 200 OK".getBytes()).put(CRLF);
-                buffer.put("Transfer-Encoding: chunked".getBytes()).put(CRLF);
-                buffer.put(CRLF);
-
-                buffer.flip();
-                channel.write(buffer);
-
-                headersSent = true;
+            while (pendingStart < pendingEnd || gather()) {
+                writePending(channel);
+                if (pendingStart < pendingEnd) {
+                    if (Broker.TRACE) { log("Socket full, " + (pendingEnd - pendingStart) + " buffers left to write"); }
+                    if ((key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+                        key.interestOps(SelectionKey.OP_WRITE);
+                    }
+                    return;
+                }
+            }
+            if (key.isValid() && key.interestOps() != 0) {
+                key.interestOps(0);
+            }
+        } catch (SocketException e) {
+            if (!channel.isOpen()) {
+                throw e;
+            } else {
+                broker.closeChannel(key);
+            }
+        }
+    }
 
-                Message message = client.getMessagesToSend().peekFirst();
-                if (message == null) {
-                    if (Broker.DEBUG) { log("Sent headers out - no messages"); }
-                    key.interestOps(0);
-                } else {
-                    if (Broker.DEBUG) { log("Sent headers out - next messages"); }
+    private void writePending(WritableByteChannel channel) throws IOException {
+        if (channel instanceof GatheringByteChannel) {
+            ((GatheringByteChannel)channel).write(pending, pendingStart, pendingEnd - pendingStart);
+        } else {
+            for (int i = pendingStart; i < pendingEnd; i++) {
+                channel.write(pending[i]);
+                if (pending[i].hasRemaining()) {
+                    break;
                 }
-                return;
             }
+        }
+        while (pendingStart < pendingEnd && !pending[pendingStart].hasRemaining()) {
+            if (pendingSegments[pendingStart] != null) {
+                Message.FRAME_POOL.release(pendingSegments[pendingStart]);
+                pendingSegments[pendingStart] = null;
+            }
+            pending[pendingStart] = null;
+            if (pendingLastFragments[pendingStart]) {
+                client.messageSent(pendingMessages[pendingStart]);
+                pendingLastFragments[pendingStart] = false;
+            }
+            if (pendingMessages[pendingStart] != null) {
+                pendingMessages[pendingStart].release();
+                pendingMessages[pendingStart] = null;
+            }
+            pendingStart++;
+        }
+    }
 
-            Message message = client.getMessagesToSend().pollFirst();
-            if (message != null) {
-                byte[] body = message.getBody();
-                buffer.clear();
-                buffer.put(Integer.toString(body.length + 12, 16).getBytes()).put(CRLF);
-                buffer.put(message.getType().getBytes());
-                buffer.put(message.getFlags().getBytes());
-                buffer.put(message.getClientId().getBytes());
-                buffer.putInt(body.length);
-                buffer.put(body);
-                buffer.put(CRLF);
-                buffer.flip();
+    private void releasePending() {
+        for (int i = pendingStart; i < pendingEnd; i++) {
+            if (pendingSegments[i] != null) {
+                Message.FRAME_POOL.release(pendingSegments[i]);
+                pendingSegments[i] = null;
+            }
+            pending[i] = null;
+            if (pendingLastFragments[i]) {
+                client.messageSent(pendingMessages[i]);
+                pendingLastFragments[i] = false;
+            }
+            if (pendingMessages[i] != null) {
+                pendingMessages[i].release();
+                pendingMessages[i] = null;
+            }
+        }
+        pendingStart = 0;
+        pendingEnd = 0;
+        for (Transfer transfer : transfers) {
+            if (transfer.segment != null) {
+                Message.FRAME_POOL.release(transfer.segment);
+            }
+            client.messageSent(transfer.message);
+            transfer.message.release();
+        }
+        transfers.clear();
+        streams = 0;
+        for (StreamedMessage stream : waitingStreams) {
+            client.messageSent(stream);
+            stream.release();
+        }
+        waitingStreams.clear();
+    }
 
-                channel.write(buffer);
+    /**
+     * Takes next batch of messages from the queue (and response headers if not sent yet), followed
+     * by next fragment of each large message in transfer. Small messages queued while large ones are
+     * being sent thus go out between their fragments, and so does everything else while streamed
+     * message waits for more of its body.
+     *
+     * @return false if there is nothing to write
+     */
+    private boolean gather() {
+        pendingStart = 0;
+        pendingEnd = 0;
 
-                if (Broker.DEBUG) { log("Sent message " + message.getType() + " out."); }
+        if (!headersSent) {
+            headers.clear();
+            headers.put("HTTP/1.1 200 OK".getBytes()).put(CRLF);
+            headers.put("Transfer-Encoding: chunked".getBytes()).put(CRLF);
+            headers.put(CRLF);
+            pending[pendingEnd++] = headers.flip();
+            headersSent = true;
+            if (Broker.DEBUG) { log("Sending headers out"); }
+        }
 
-                message = client.getMessagesToSend().peekFirst();
-                if (message != null) {
-                    return;
-                }
+        int count = 0;
+        Message message = transfers.size() < MAX_TRANSFERS ? client.pollMessageToSend() : null;
+        while (message != null) {
+            if (client.isExpired(message)) {
+                client.messageExpired(message);
+            } else if (message instanceof StreamedMessage) {
+                startStream((StreamedMessage)message);
             } else {
-                if (Broker.DEBUG) { log("Asked to send but no messages."); }
+                ByteBuffer frame = frameOf(message);
+                if (fragmentSize > 0 && frame.remaining() > fragmentSize) {
+                    transfers.add(new Transfer(message, nextTransferId++, frame));
+                    if (Broker.DEBUG) { log("Sending message " + message.getType() + " out in fragments."); }
+                } else {
+                    // Client retained the message when it was queued; that reference is released once written out
+                    pendingMessages[pendingEnd] = message;
+                    pending[pendingEnd++] = frame;
+                    count++;
+
+                    if (Broker.DEBUG) { log("Sending message " + message.getType() + " out."); }
+                    client.messageSent(message);
+                }
             }
-            key.interestOps(0);
-        } catch (SocketException e) {
-            if (!channel.isOpen()) {
-                throw e;
+
+            message = count < MAX_MESSAGES_PER_WRITE && transfers.size() < MAX_TRANSFERS ? client.pollMessageToSend() : null;
+        }
+
+        fragmentPrefixes.clear();
+        for (int i = 0; i < transfers.size(); i++) {
+            Transfer transfer = transfers.get(i);
+            boolean done;
+            if (transfer.hasPayload()) {
+                done = addFragment(transfer);
+            } else if (transfer.stream.isAborted()) {
+                done = true;
+                addAbandonedFragment(transfer);
             } else {
-                broker.closeChannel(key);
+                // Waiting for more of streamed message's body
+                done = false;
             }
+            if (done) {
+                transfers.remove(i);
+                i--;
+                if (transfer.stream != null) {
+                    streams--;
+                    while (streams < MAX_STREAMS && !waitingStreams.isEmpty()) {
+                        startStream(waitingStreams.poll());
+                    }
+                }
+            }
+        }
+        return pendingEnd > 0;
+    }
+
+    /**
+     * Starts sending streamed message in fragments as its body arrives, or keeps it until one of other
+     * streams is done. Streams are opened only to recipients which take fragments, but this one might
+     * have been reopened without them since.
+     */
+    private void startStream(StreamedMessage message) {
+        if (message.isAborted() || fragmentSize == 0) {
+            if (Broker.DEBUG) { log("Dropping message " + message.getType() + (message.isAborted() ? " whose sender went away" : " as fragments are not taken")); }
+            client.messageSent(message);
+            message.release();
+            return;
         }
+        if (streams >= MAX_STREAMS) {
+            waitingStreams.add(message);
+            return;
+        }
+        if (Broker.DEBUG) { log("Sending message " + message.getType() + " out in fragments while it is being received."); }
+        message.setDataListener(this::streamHasData);
+        transfers.add(new Transfer(message, nextTransferId++, message.getFrame()));
+        streams++;
+    }
+
+    /**
+     * More of streamed message's body arrived - possibly on other thread.
+     */
+    private void streamHasData() {
+        broker.executeDeferredForGame(client.getGame().getGameId(), this::flush);
+    }
+
+    private ByteBuffer frameOf(Message message) {
+        GameOptions options = client.getGame().getGameOptions();
+        if (deltaEnabled && options.getDeltaTypes().contains(message.getType())) {
+            return deltaFrameOf(message, options.getDeltaKeyframeInterval());
+        }
+        if (deflateThreshold > 0 && message.getBodyLength() > deflateThreshold) {
+            return message.getDeflatedFrame(Reactor.currentDeflaterPool(), client.getGame().getGameOptions().getDeflateDictionary());
+        }
+        return message.getFrame();
+    }
+
+    /**
+     * Encodes DLTA message for this client only: original message's header, mode and then either full
+     * body (first message for the key, periodic keyframe or when delta would not be smaller) or XOR
+     * delta against the body sent before.
+     */
+    private ByteBuffer deltaFrameOf(Message message, int keyframeInterval) {
+        long key = CoalescedMessage.keyOf(message);
+        DeltaBase base = deltaBases.get(key);
+        if (base == null) {
+            base = new DeltaBase();
+            deltaBases.put(key, base);
+        }
+        byte[] body = message.getBody();
+        ByteBuffer frame = ByteBuffer.allocate(8 + 2 + 12 + 12 + 1 + body.length + 2);
+        frame.position(10 + 12);
+        frame.putInt(message.getTypeCode());
+        frame.putInt(message.getHeader());
+        frame.putInt(body.length);
+        int modePosition = frame.position();
+        frame.put(DELTA_XOR);
+        int start = frame.position();
+
+        boolean keyframe = base.body == null || base.sinceKeyframe >= keyframeInterval;
+        frame.limit(frame.capacity() - 2);
+        if (keyframe || !XorDelta.encode(base.body, body, frame)) {
+            frame.position(modePosition);
+            frame.put(DELTA_FULL);
+            frame.put(body);
+            base.sinceKeyframe = 0;
+        } else {
+            base.sinceKeyframe++;
+        }
+        base.body = body;
+
+        int length = 12 + 1 + frame.position() - start;
+        frame.limit(frame.capacity());
+        frame.put(CRLF);
+        frame.put(0, String.format("%08x", length + 12).getBytes());
+        frame.put(8, CRLF);
+        frame.putInt(10, DLTA_TYPE);
+        frame.putShort(14, NO_FLAGS);
+        frame.putShort(16, (short)message.getHeader());
+        frame.putInt(18, length);
+        return frame.flip();
+    }
+
+    /**
+     * Adds next fragment of the transfer as a FRAG message: 4 bytes of transfer id followed by next
+     * part of the original message - its header first and then body.
+     *
+     * @return true if that was the last fragment
+     */
+    private boolean addFragment(Transfer transfer) {
+        Message message = transfer.message;
+        int length = Math.min(transfer.payload.remaining(), fragmentSize);
+        int fragmentLength = 4 + length;
+
+        int start = fragmentPrefixes.position();
+        fragmentPrefixes.put(Integer.toString(fragmentLength + 12, 16).getBytes()).put(CRLF);
+        fragmentPrefixes.putInt(FRAG_TYPE);
+        fragmentPrefixes.putShort(NO_FLAGS);
+        fragmentPrefixes.putShort((short)message.getHeader());
+        fragmentPrefixes.putInt(fragmentLength);
+        fragmentPrefixes.putInt(transfer.id);
+        ByteBuffer prefix = fragmentPrefixes.duplicate();
+        prefix.flip().position(start);
+        pending[pendingEnd++] = prefix;
+
+        ByteBuffer fragment = transfer.payload.duplicate();
+        fragment.limit(fragment.position() + length);
+        pending[pendingEnd++] = fragment;
+        pending[pendingEnd++] = ByteBuffer.wrap(CRLF);
+
+        transfer.payload.position(transfer.payload.position() + length);
+        if (transfer.segment != null && !transfer.segment.hasRemaining()) {
+            // Pooled segment goes back once its last slice is written out
+            pendingSegments[pendingEnd - 2] = transfer.segment;
+            transfer.segment = null;
+        }
+        if (transfer.isComplete()) {
+            // Queued message's reference is released and it is accounted as sent once its last fragment is written out
+            pendingMessages[pendingEnd - 1] = message;
+            pendingLastFragments[pendingEnd - 1] = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds empty FRAG message which tells the client that the rest of the transfer is not coming
+     * as sender of streamed message went away.
+     */
+    private void addAbandonedFragment(Transfer transfer) {
+        if (Broker.DEBUG) { log("Abandoning message " + transfer.message.getType() + " as its sender went away"); }
+        int start = fragmentPrefixes.position();
+        fragmentPrefixes.put(Integer.toString(4 + 12, 16).getBytes()).put(CRLF);
+        fragmentPrefixes.putInt(FRAG_TYPE);
+        fragmentPrefixes.putShort(NO_FLAGS);
+        fragmentPrefixes.putShort((short)transfer.message.getHeader());
+        fragmentPrefixes.putInt(4);
+        fragmentPrefixes.putInt(transfer.id);
+        ByteBuffer prefix = fragmentPrefixes.duplicate();
+        prefix.flip().position(start);
+        pending[pendingEnd++] = prefix;
+        pending[pendingEnd++] = ByteBuffer.wrap(CRLF);
+        pendingMessages[pendingEnd - 1] = transfer.message;
+        pendingLastFragments[pendingEnd - 1] = true;
     }
 
     @Override
     public void open(SelectionKey associatedKey) {
         super.open(associatedKey);
         associatedKey.interestOps(SelectionKey.OP_WRITE);
-        buffer.clear();
+        releasePending();
         headersSent = false;
+        nextTransferId = 0;
+        deltaBases.clear();
+        client.updateCongestion();
     }
 
+    @Override
+    public void close() {
+        super.close();
+        releasePending();
+        // Nobody is reading from closed stream so it must not hold back other clients
+        client.updateCongestion();
+    }
+
+    /**
+     * Called by producer when client's queue stopped being empty. Producer might be on any thread
+     * so writing is done on the thread client's game is pinned to - after everything else in current
+     * iteration, so all messages queued meanwhile go out together.
+     */
     public void clientHasMessages() throws IOException {
         if (Broker.TRACE) { log("   Have messages ready"); }
-        write(associatedKey, ((WritableByteChannel)associatedKey.channel()));
+        broker.executeDeferredForGame(client.getGame().getGameId(), this::flush);
+    }
+
+    private void flush() {
+        SelectionKey key = associatedKey;
+        if (!open || key == null || !key.isValid()) {
+            return;
+        }
+        if (pendingStart < pendingEnd) {
+            // Socket is full; OP_WRITE will carry on
+            return;
+        }
+        try {
+            write(key, ((WritableByteChannel)key.channel()));
+        } catch (IOException e) {
+            log("Failed to write messages; " + e.getMessage(), true);
+            try {
+                broker.closeChannel(key);
+            } catch (IOException ignore) { }
+        }
     }
 }
@@ -0,0 +1,36 @@
+package org.ah.sigas.broker;
+
+import java.nio.channels.SelectionKey;
+
+import org.ah.sigas.broker.util.TimerWheel;
+
+/**
+ * Alternative way of driving handlers. When broker has no engine set it uses its own NIO reactors.
+ */
+public interface Engine {
+
+    public void loop();
+
+    public void stop();
+
+    /**
+     * Same contract as {@link Broker#bindToGame(SelectionKey, String, HTTPRequestHandler)}.
+     */
+    public boolean bindToGame(SelectionKey key, String gameId, HTTPRequestHandler handler);
+
+    /**
+     * Same contract as {@link Broker#executeForGame(String, Runnable)}.
+     */
+    public void executeForGame(String gameId, Runnable command);
+
+    /**
+     * Same contract as {@link Broker#executeDeferredForGame(String, Runnable)}.
+     */
+    public void executeDeferredForGame(String gameId, Runnable command);
+
+    /**
+     * Same contract as {@link Broker#schedule(String, TimerWheel.Timer, long)}.
+     */
+    public void schedule(String gameId, TimerWheel.Timer timer, long deadline);
+
+}
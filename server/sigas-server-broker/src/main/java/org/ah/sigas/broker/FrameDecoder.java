@@ -0,0 +1,268 @@
+package org.ah.sigas.broker;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes messages (see docs/messages.md) sent in HTTP chunks. Message which is complete in the
+ * read buffer is handed over as a slice of it; only messages split between reads are copied
+ * aside until the rest of them arrives. Messages longer than stream threshold which do not fit
+ * the read buffer can be handed over in parts instead.
+ */
+public class FrameDecoder {
+
+    public static final int HEADER_LENGTH = 12;
+
+    /**
+     * Largest buffer for messages split between reads kept after such message is decoded.
+     */
+    private static final int MAX_KEPT_PARTIAL = 65536;
+
+    public enum Result { MORE, END, ERROR }
+
+    /**
+     * Thrown by listener for message which breaks stream's limits; decoding then stops with
+     * {@link Result#ERROR} and exception's message as the error.
+     */
+    public static class MessageRejectedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public MessageRejectedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * Gets each decoded message. Type and header (flags and client id) are four ASCII bytes each,
+     * big endian. Body is valid only for the duration of the call.
+     */
+    public interface Listener {
+        void message(int type, int header, ByteBuffer body) throws IOException;
+
+        /**
+         * Called for message longer than stream threshold when only its header is received.
+         *
+         * @return true to get body in parts with {@link #messagePart(ByteBuffer, boolean)}, false to
+         *         get whole message with {@link #message(int, int, ByteBuffer)}
+         */
+        default boolean messageStarted(int type, int header, int length) throws IOException { return false; }
+
+        /**
+         * Next part of streamed message's body; valid only for the duration of the call.
+         */
+        default void messagePart(ByteBuffer part, boolean last) throws IOException { }
+    }
+
+    private static final int CHUNK_SIZE = 0;
+    private static final int CHUNK_SIZE_LF = 1;
+    private static final int CHUNK_DATA = 2;
+    private static final int CHUNK_END_CR = 3;
+    private static final int CHUNK_END_LF = 4;
+
+    private final Listener listener;
+    private int maxMessageSize;
+
+    private int cs = CHUNK_SIZE;
+    private int chunkLen = 0;
+    private ByteBuffer partial = ByteBuffer.allocate(256);
+    private int partialLen = -1;
+    private int streamThreshold = 0;
+    private int streamRemaining = 0;
+    private String error;
+
+    public FrameDecoder(Listener listener, int maxMessageSize) {
+        this.listener = listener;
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    public int getMaxMessageSize() { return maxMessageSize; }
+
+    public void setMaxMessageSize(int maxMessageSize) { this.maxMessageSize = maxMessageSize; }
+
+    public int getStreamThreshold() { return streamThreshold; }
+
+    /**
+     * Sets body length over which messages not complete in the read buffer are offered to the listener
+     * in parts; 0 to always decode whole messages.
+     */
+    public void setStreamThreshold(int streamThreshold) { this.streamThreshold = streamThreshold; }
+
+    /**
+     * @return why decoding stopped with {@link Result#ERROR}
+     */
+    public String getError() { return error; }
+
+    public void reset() {
+        cs = CHUNK_SIZE;
+        chunkLen = 0;
+        partial.clear();
+        partialLen = -1;
+        streamRemaining = 0;
+        error = null;
+    }
+
+    /**
+     * @return true if decoder is in the middle of streamed message's body
+     */
+    public boolean isStreaming() { return streamRemaining > 0; }
+
+    /**
+     * Decodes as much of the input as possible. Input is consumed completely unless stream ended
+     * or is broken.
+     *
+     * @return {@link Result#END} after last (empty) chunk, {@link Result#ERROR} if input is not
+     *         valid or message is too long; {@link Result#MORE} otherwise
+     */
+    public Result decode(ByteBuffer in) throws IOException {
+        try {
+            return decodeChunks(in);
+        } catch (MessageRejectedException e) {
+            return error(e.getMessage());
+        }
+    }
+
+    private Result decodeChunks(ByteBuffer in) throws IOException {
+        while (in.hasRemaining()) {
+            if (cs == CHUNK_DATA) {
+                if (!decodeMessages(in)) {
+                    return Result.ERROR;
+                }
+                if (chunkLen == 0) {
+                    cs = CHUNK_END_CR;
+                }
+                continue;
+            }
+            byte b = in.get();
+            if (cs == CHUNK_SIZE) {
+                int digit = Character.digit(b, 16);
+                if (digit >= 0) {
+                    if (chunkLen > (Integer.MAX_VALUE >> 4)) {
+                        return error("Chunk size too big");
+                    }
+                    chunkLen = chunkLen * 16 + digit;
+                } else if (b == 13) {
+                    cs = CHUNK_SIZE_LF;
+                } else {
+                    return error("Wrong input in Chunked-Encoding size, expected '0-9A-F' or CR; got '" + Integer.toString(b) + "'");
+                }
+            } else if (cs == CHUNK_SIZE_LF) {
+                if (b != 10) {
+                    return error("Wrong input after CR in Chunked-Encoding size; expected LF and got '" + Integer.toString(b) + "'");
+                }
+                if (chunkLen == 0) {
+                    return Result.END;
+                }
+                cs = CHUNK_DATA;
+            } else if (cs == CHUNK_END_CR) {
+                if (b != 13) {
+                    return error("Expected chunk end (CR) but got '" + Integer.toString(b) + "'");
+                }
+                cs = CHUNK_END_LF;
+            } else if (cs == CHUNK_END_LF) {
+                if (b != 10) {
+                    return error("Expected chunk end (LF) but got '" + Integer.toString(b) + "'");
+                }
+                cs = CHUNK_SIZE;
+            }
+        }
+        return Result.MORE;
+    }
+
+    /**
+     * Decodes messages from what is available of current chunk.
+     *
+     * @return false if message is too long
+     */
+    private boolean decodeMessages(ByteBuffer in) throws IOException {
+        while (chunkLen > 0 && in.hasRemaining()) {
+            int available = Math.min(chunkLen, in.remaining());
+            if (streamRemaining > 0) {
+                decodeStream(in, available);
+                continue;
+            }
+            if (partial.position() == 0 && available >= HEADER_LENGTH) {
+                int start = in.position();
+                int length = in.getInt(start + 8);
+                if (length < 0 || length > maxMessageSize) {
+                    error("Message of " + Integer.toUnsignedString(length) + " bytes is longer than " + maxMessageSize);
+                    return false;
+                }
+                if (available >= HEADER_LENGTH + length) {
+                    ByteBuffer body = in.duplicate();
+                    body.position(start + HEADER_LENGTH).limit(start + HEADER_LENGTH + length);
+                    in.position(start + HEADER_LENGTH + length);
+                    chunkLen -= HEADER_LENGTH + length;
+                    listener.message(in.getInt(start), in.getInt(start + 4), body.slice());
+                    continue;
+                }
+            }
+            if (!decodePartial(in, available)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies next part of message which is not complete in the input aside.
+     */
+    private boolean decodePartial(ByteBuffer in, int available) throws IOException {
+        int needed = partialLen < 0 ? HEADER_LENGTH - partial.position() : HEADER_LENGTH + partialLen - partial.position();
+        int l = Math.min(needed, available);
+        ByteBuffer part = in.duplicate();
+        part.limit(part.position() + l);
+        partial.put(part);
+        in.position(in.position() + l);
+        chunkLen -= l;
+
+        if (partialLen < 0 && partial.position() == HEADER_LENGTH) {
+            partialLen = partial.getInt(8);
+            if (partialLen < 0 || partialLen > maxMessageSize) {
+                error("Message of " + Integer.toUnsignedString(partialLen) + " bytes is longer than " + maxMessageSize);
+                return false;
+            }
+            if (streamThreshold > 0 && partialLen > streamThreshold && partialLen > available - l
+                    && listener.messageStarted(partial.getInt(0), partial.getInt(4), partialLen)) {
+                streamRemaining = partialLen;
+                partial.clear();
+                partialLen = -1;
+                return true;
+            }
+            if (partial.capacity() < HEADER_LENGTH + partialLen) {
+                partial = ByteBuffer.allocate(HEADER_LENGTH + partialLen).put(partial.flip());
+            }
+        }
+        if (partialLen >= 0 && partial.position() == HEADER_LENGTH + partialLen) {
+            ByteBuffer body = partial.duplicate();
+            body.position(HEADER_LENGTH);
+            body.limit(HEADER_LENGTH + partialLen);
+            int type = partial.getInt(0);
+            int header = partial.getInt(4);
+            partial.clear();
+            partialLen = -1;
+            listener.message(type, header, body.slice());
+            if (partial.capacity() > MAX_KEPT_PARTIAL) {
+                partial = ByteBuffer.allocate(256);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Hands next part of streamed message's body to the listener as a slice of the input.
+     */
+    private void decodeStream(ByteBuffer in, int available) throws IOException {
+        int l = Math.min(streamRemaining, available);
+        ByteBuffer part = in.duplicate();
+        part.limit(part.position() + l);
+        in.position(in.position() + l);
+        chunkLen -= l;
+        streamRemaining -= l;
+        listener.messagePart(part.slice(), streamRemaining == 0);
+    }
+
+    private Result error(String error) {
+        this.error = error;
+        return Result.ERROR;
+    }
+}
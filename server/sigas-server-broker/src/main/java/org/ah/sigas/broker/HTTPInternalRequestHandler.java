@@ -25,6 +25,10 @@ public class HTTPInternalRequestHandler extends HTTPRequestHandler {
         void received(SelectionKey key, ReadableByteChannel channel, String body);
     }
 
+    private interface GameCommand {
+        void apply() throws Exception;
+    }
+
     private static Class<?>[] ROUTE_WITH_GAME_ID_METHOD_PARAMETERS = new Class[] {
             SelectionKey.class, String.class, String.class
     };
@@ -51,13 +55,13 @@ public class HTTPInternalRequestHandler extends HTTPRequestHandler {
 
             String gameId;
             String subpath = "";
-            path = path.substring(6);
-            int i = path.indexOf('/');
+            String gamePath = path.substring(6);
+            int i = gamePath.indexOf('/');
             if (i > 0) {
-                gameId = path.substring(0, i);
-                subpath = path.substring(i + 1);
+                gameId = gamePath.substring(0, i);
+                subpath = gamePath.substring(i + 1);
             } else {
-                gameId = path;
+                gameId = gamePath;
             }
 
             String routeKey = method.toUpperCase() + ":" + subpath;
@@ -117,23 +121,23 @@ public class HTTPInternalRequestHandler extends HTTPRequestHandler {
 
             String id = extractClientId(key, res);
 
-            if (broker.getGames().containsKey(gameId)) {
-                handleError(key, gameId + ":- Game with same key already exists");
-                return;
-            }
-
             GameOptions gameOptions = new GameOptions();
             gameOptions.fromJSON((Map<String, Object>)res.get("options"));
 
-            Game game = new Game(gameId, gameOptions);
-            broker.getGames().put(gameId, game);
-            Client client = new Client(game, masterToken, id, alias, true);
-            game.addClient(client);
-
-            if (Broker.INFO) { System.out.println(gameId + ":" + client.getClientId() + ":" + client.getToken() + " Game created."); }
+            applyToGame(key, gameId, () -> {
+                Game game = new Game(broker, gameId, gameOptions);
+                if (broker.getGames().putIfAbsent(gameId, game) != null) {
+                    handleError(key, gameId + ":- Game with same key already exists");
+                    return;
+                }
+                game.scheduleIdleCheck();
+                Client client = new Client(game, masterToken, id, alias, true);
+                game.addClient(client);
 
-            createSimpleResponse(key, 204, "OK");
+                if (Broker.INFO) { System.out.println(gameId + ":" + client.getClientId() + ":" + client.getToken() + " Game created."); }
 
+                createSimpleResponse(key, 204, "OK");
+            });
         } catch (ErrorAlreadySent ignore) {
         } catch (Exception e) {
             handleError(key, e);
@@ -141,17 +145,19 @@ public class HTTPInternalRequestHandler extends HTTPRequestHandler {
     }
 
     public void startGame(SelectionKey key, String gameId, String body) {
-        Game game = broker.getGames().get(gameId);
-        if (game == null) {
-            handleError(key, gameId + ":- Game with supplied key does not exist");
-            return;
-        }
+        applyToGame(key, gameId, () -> {
+            Game game = broker.getGames().get(gameId);
+            if (game == null) {
+                handleError(key, gameId + ":- Game with supplied key does not exist");
+                return;
+            }
 
-        game.setState(Game.State.RUNNING);
+            game.setState(Game.State.RUNNING);
 
-        if (Broker.INFO) { System.out.println(gameId + ":- Game started"); }
+            if (Broker.INFO) { System.out.println(gameId + ":- Game started"); }
 
-        createSimpleResponse(key, 204, "OK");
+            createSimpleResponse(key, 204, "OK");
+        });
     }
 
     public void addClient(SelectionKey key, String gameId, String body) {
@@ -176,34 +182,55 @@ public class HTTPInternalRequestHandler extends HTTPRequestHandler {
             String alias = (String)res.get("alias");
             String id = extractClientId(key, res);
 
-            Game game = broker.getGames().get(gameId);
-            if (game == null) {
-                handleError(key, "Game with key " + gameId + " does not exist");
-                return;
-            }
-
-            for (Client client : game.getClients().values()) {
-                if (client.getToken().equals(token)) {
-                    if (Broker.INFO) { System.out.println(gameId + ":" + client.getClientId() + ":" + token + " Client with same token already exists for game"); }
-                    createSimpleResponse(key, 304, "NOT MODIFIED");
+            applyToGame(key, gameId, () -> {
+                Game game = broker.getGames().get(gameId);
+                if (game == null) {
+                    handleError(key, "Game with key " + gameId + " does not exist");
                     return;
                 }
-            }
 
-            Client client = new Client(game, token, id, alias, false);
-            game.addClient(client);
+                for (Client client : game.getClients().values()) {
+                    if (client.getToken().equals(token)) {
+                        if (Broker.INFO) { System.out.println(gameId + ":" + client.getClientId() + ":" + token + " Client with same token already exists for game"); }
+                        createSimpleResponse(key, 304, "NOT MODIFIED");
+                        return;
+                    }
+                }
+
+                Client client = new Client(game, token, id, alias, false);
+                game.addClient(client);
 
-            if (Broker.INFO) { System.out.println(gameId + ":" + client.getClientId() + ":" + client.getToken() + " Added client to game"); }
+                if (Broker.INFO) { System.out.println(gameId + ":" + client.getClientId() + ":" + client.getToken() + " Added client to game"); }
 
-            createSimpleResponse(key, 204, "OK");
+                createSimpleResponse(key, 204, "OK");
 
-            game.getMasterClient().sendMessage(new JoinedMessage(client.getClientId(), client.getAlias()));
+                game.getMasterClient().sendMessage(new JoinedMessage(client.getClientId(), client.getAlias()));
+            });
         } catch (ErrorAlreadySent ignore) {
         } catch (Exception e) {
             handleError(key, e);
         }
     }
 
+    /**
+     * Changes to games and clients are applied on the data plane - the thread game is pinned to.
+     * Parsing, validation and sending response stay on the control plane thread.
+     */
+    private void applyToGame(SelectionKey key, String gameId, GameCommand command) {
+        broker.executeForGame(gameId, () -> {
+            try {
+                command.apply();
+            } catch (Exception e) {
+                handleError(key, e);
+            }
+        });
+    }
+
+    @Override
+    protected void createSimpleResponse(SelectionKey key, int responseCode, String responseMessage, String body) {
+        broker.executeOnControlPlane(() -> super.createSimpleResponse(key, responseCode, responseMessage, body));
+    }
+
     private String extractClientId(SelectionKey key, Map<String, Object> map) throws ErrorAlreadySent {
         Object clientId = map.get("client_id");
         if (clientId == null) {
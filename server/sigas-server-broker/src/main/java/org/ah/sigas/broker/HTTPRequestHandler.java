@@ -127,6 +127,11 @@ public abstract class HTTPRequestHandler implements Handler {
     public void read(SelectionKey key, ReadableByteChannel channel) throws IOException {
 
         int read = channel.read(buffer);
+        if (read < 0) {
+            // Other side went away before finishing request
+            broker.closeChannel(key);
+            return;
+        }
         while (read > 0 && !parsingError && !parsingComplete) {
 
             buffer.flip();
@@ -165,6 +170,13 @@ public abstract class HTTPRequestHandler implements Handler {
 
     protected abstract void processRequest(SelectionKey key, ReadableByteChannel channel) throws IOException;
 
+    /**
+     * Continues processing of already parsed request after channel has been handed over to another reactor.
+     */
+    public void resume(SelectionKey key, ReadableByteChannel channel) throws IOException {
+        processRequest(key, channel);
+    }
+
     @Override
     public void write(SelectionKey key, WritableByteChannel channel) throws IOException {
         throw new UnsupportedOperationException();
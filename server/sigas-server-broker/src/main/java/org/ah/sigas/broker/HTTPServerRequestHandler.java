@@ -31,6 +31,10 @@ public class HTTPServerRequestHandler extends HTTPRequestHandler {
                 return;
             }
 
+            if (broker.bindToGame(key, gameId, this)) {
+                return;
+            }
+
             String authorizationHeader = headers.get("authorization");
 
             if (authorizationHeader == null || !authorizationHeader.startsWith("Token ") || authorizationHeader.length() < 7) {
@@ -85,6 +89,7 @@ public class HTTPServerRequestHandler extends HTTPRequestHandler {
                             clientInboundHandlerImpl.getBuffer().put(bytes, pos, initalReadCount);
                             clientInboundHandlerImpl.processInput(key, channel, initalReadCount);
                         }
+                        client.touch();
                         if (Broker.DEBUG) { System.out.println(gameId + ":" + client.getClientId() + ":" + token + " Got inbound connection"); }
 
                     } else if (method.equals("GET")) {
@@ -95,6 +100,18 @@ public class HTTPServerRequestHandler extends HTTPRequestHandler {
                             return;
                         }
 
+                        int fragmentSize;
+                        int deflateThreshold;
+                        int delta;
+                        try {
+                            fragmentSize = intHeader(ClientOutboundHandlerImpl.FRAGMENT_SIZE_HEADER);
+                            deflateThreshold = intHeader(ClientOutboundHandlerImpl.DEFLATE_HEADER);
+                            delta = intHeader(ClientOutboundHandlerImpl.DELTA_HEADER);
+                        } catch (NumberFormatException e) {
+                            createSimpleResponse(key, 400, "BAD REQUEST", "Bad outbound request, " + e.getMessage());
+                            return;
+                        }
+
                         ClientHandler outboundHandler = client.getOutboundHandler();
                         if (outboundHandler == null) {
                             outboundHandler = new ClientOutboundHandlerImpl(broker, client);
@@ -103,9 +120,13 @@ public class HTTPServerRequestHandler extends HTTPRequestHandler {
                             SelectionKey oldKey = outboundHandler.getAssociatedKey();
                             broker.closeChannel(oldKey);
                         }
+                        ((ClientOutboundHandlerImpl)outboundHandler).setFragmentSize(fragmentSize);
+                        ((ClientOutboundHandlerImpl)outboundHandler).setDeflateThreshold(deflateThreshold);
+                        ((ClientOutboundHandlerImpl)outboundHandler).setDeltaEnabled(delta != 0);
 
                         key.attach(outboundHandler);
                         outboundHandler.open(key);
+                        client.touch();
                         if (Broker.DEBUG) { System.out.println(gameId + ":" + client.getClientId() + ":" + token + " Got outbound connection"); }
                     }
                     return;
@@ -120,4 +141,18 @@ public class HTTPServerRequestHandler extends HTTPRequestHandler {
         createSimpleResponse(key, 404, "NOT FOUND", "Method " + method + ", path " + path + " not found");
     }
 
+    /**
+     * @return value of given numeric header or 0 if it is not present
+     */
+    private int intHeader(String name) {
+        String value = headers.get(name);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new NumberFormatException(name + " must be a number");
+        }
+    }
 }
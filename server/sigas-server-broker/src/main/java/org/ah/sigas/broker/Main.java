@@ -9,6 +9,10 @@ public class Main {
     public static void main(String[] args) throws Exception {
         int serverPort = -1;
         int internalPort = -1;
+        int reactors = 1;
+        String engine = "nio";
+        BusyPoll busyPoll = null;
+        boolean reusePort = false;
         URI uri = null;
 
         int ptr = 0;
@@ -30,6 +34,30 @@ public class Main {
                 } catch (NumberFormatException e) {
                     error("Expected port number but got '" + args[0] + "'");
                 }
+            } else if (args[ptr].equals("--reactors") || args[ptr].equals("-r")) {
+                ptr++;
+                if (ptr >= args.length) { error("Missing value for switch " + args[ptr - 1]); }
+                try {
+                    reactors = Integer.parseInt(args[ptr]);
+                } catch (NumberFormatException e) {
+                    error("Expected number of reactors but got '" + args[ptr] + "'");
+                }
+                if (reactors < 1) { error("Number of reactors must be at least 1"); }
+            } else if (args[ptr].equals("--engine") || args[ptr].equals("-e")) {
+                ptr++;
+                if (ptr >= args.length) { error("Missing value for switch " + args[ptr - 1]); }
+                engine = args[ptr];
+                if (!engine.equals("nio") && !engine.equals("virtual") && !engine.equals("uring")) { error("Expected 'nio', 'virtual' or 'uring' engine but got '" + engine + "'"); }
+            } else if (args[ptr].equals("--busy-poll") || args[ptr].equals("-b")) {
+                ptr++;
+                if (ptr >= args.length) { error("Missing value for switch " + args[ptr - 1]); }
+                try {
+                    busyPoll = BusyPoll.parse(args[ptr]);
+                } catch (IllegalArgumentException e) {
+                    error(e.getMessage());
+                }
+            } else if (args[ptr].equals("--reuse-port")) {
+                reusePort = true;
             } else if (args[ptr].equals("--hub-url") || args[ptr].equals("-u")) {
                 ptr++;
                 if (ptr >= args.length) { error("Missing value for switch " + args[ptr - 1]); }
@@ -51,13 +79,50 @@ public class Main {
 
         System.out.println("Starting server on port " + serverPort + " and internal port " + internalPort);
         System.out.println("Configured hub uri as " +  uri);
+        if (reactors > 1) { System.out.println("Using " + reactors + " reactor threads"); }
 
         Messages.registerAll();
 
         Broker broker = new Broker(serverPort, internalPort, uri);
+        broker.setReactorCount(reactors);
+        if (busyPoll != null) {
+            if (!engine.equals("nio")) { error("Busy polling is available with 'nio' engine only"); }
+            broker.setBusyPoll(busyPoll);
+            System.out.println("Reactors busy polling with " + busyPoll);
+        }
+        if (reusePort) {
+            if (!engine.equals("nio")) { error("Reusing port is available with 'nio' engine only"); }
+            try {
+                broker.setReusePort(true);
+            } catch (IllegalArgumentException e) {
+                error(e.getMessage());
+            }
+            System.out.println("Binding ports with SO_REUSEPORT");
+        }
+        if (engine.equals("virtual")) {
+            broker.setEngine(createEngine(broker, "org.ah.sigas.broker.vt.VirtualThreadEngine", "Virtual thread"));
+            System.out.println("Using virtual thread engine");
+        } else if (engine.equals("uring")) {
+            if (reactors > 1) { error("io_uring engine runs all games on one thread; --reactors cannot be used with it"); }
+            broker.setEngine(createEngine(broker, "org.ah.sigas.broker.uring.IoUringEngine", "io_uring"));
+            System.out.println("Using io_uring engine");
+        }
         broker.loop();
     }
 
+    private static Engine createEngine(Broker broker, String className, String name) {
+        try {
+            // Only present when built with java21 profile
+            Class<?> engineClass = Class.forName(className);
+            return (Engine)engineClass.getConstructor(Broker.class).newInstance(broker);
+        } catch (ClassNotFoundException | UnsupportedClassVersionError e) {
+            error(name + " engine is not available; broker needs to be built with -Pjava21 and run on Java 21 or newer (io_uring engine with --enable-preview, too)");
+        } catch (ReflectiveOperationException e) {
+            error("Cannot create " + name + " engine; " + e.getMessage());
+        }
+        return null;
+    }
+
     private static void error(String msg) {
         System.err.println(msg);
         System.err.println();
@@ -66,12 +131,20 @@ public class Main {
     }
 
     private static void printHelp() {
-        System.out.println("Usage: java -jar sigas-broker.jar --server-port <server-port> --local-port <local-port> --hub-url <hub-url>");
+        System.out.println("Usage: java -jar sigas-broker.jar --server-port <server-port> --local-port <local-port> --hub-url <hub-url> [--reactors <n>] [--engine <nio|virtual|uring>] [--busy-poll <spins>,<yields>,<park-ms>] [--reuse-port]");
         System.out.println("");
         System.out.println("  Options:");
         System.out.println("    --server-port <server-port>      port to listen for external connections");
         System.out.println("    --internal-port <internal-port>  port to listen for internal hub connections");
         System.out.println("    --hub-url <hub-url>              url of hub for callbacks");
+        System.out.println("    --reactors <n>                   number of selector threads games are spread across (default 1)");
+        System.out.println("    --engine <nio|virtual|uring>     'nio' selector reactors (default), 'virtual' thread per connection");
+        System.out.println("                                     or 'uring' for io_uring on Linux");
+        System.out.println("    --busy-poll <spins>,<yields>,<park-ms>");
+        System.out.println("                                     spin on selector instead of blocking; when idle spin, then yield,");
+        System.out.println("                                     then park for given number of ms. Trades CPU for latency");
+        System.out.println("    --reuse-port                     bind ports with SO_REUSEPORT; each reactor accepts on its own socket");
+        System.out.println("                                     and other brokers on this host can share the same ports");
         System.out.println("");
         System.out.println("  Order of switches is not important");
     }
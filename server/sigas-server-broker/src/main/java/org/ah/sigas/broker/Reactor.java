@@ -0,0 +1,369 @@
+package org.ah.sigas.broker;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.ah.sigas.broker.util.Clock;
+import org.ah.sigas.broker.util.DeflaterPool;
+import org.ah.sigas.broker.util.TimerWheel;
+
+/**
+ * Single selector thread. Each reactor owns its own selector and all channels registered with it.
+ * Other threads must not touch those channels directly but hand work over using {@link #execute(Runnable)}.
+ */
+public class Reactor implements Runnable {
+
+    public static final long TIMER_TICK = 10;
+    public static final int TIMER_WHEEL_SIZE = 1024;
+
+    /**
+     * Longest reactor waits in select when no timer is due sooner.
+     */
+    public static final long MAX_SELECT_TIMEOUT = 200;
+
+    public static final long BUSY_POLL_REPORT_PERIOD = 10000;
+
+    /**
+     * Length of read budget round for threads which are not reactors.
+     */
+    public static final long OUTSIDE_ROUND_NANOS = 1000000;
+
+    private static final int WORK = 0;
+    private static final int SPIN = 1;
+    private static final int YIELD = 2;
+    private static final int PARK = 3;
+
+    private static final ThreadLocal<Reactor> currentReactor = new ThreadLocal<>();
+    private static final DeflaterPool sharedDeflaterPool = new DeflaterPool();
+
+    private Broker broker;
+    private String name;
+    private Selector selector;
+    private volatile Thread thread;
+    private long round = 0;
+
+    private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private ArrayDeque<Runnable> deferred = new ArrayDeque<>();
+    private TimerWheel timers = new TimerWheel(TIMER_TICK, TIMER_WHEEL_SIZE, Clock.now());
+    private DeflaterPool deflaterPool = new DeflaterPool();
+
+    private BusyPoll busyPoll;
+    private int idleIterations = 0;
+    private long idleNanos = 0;
+    private long[] phaseNanos = new long[4];
+    private long[] reportedPhaseNanos = new long[4];
+    private TimerWheel.Timer busyPollReportTimer = new TimerWheel.Timer() {
+        @Override protected void expired(long now) {
+            reportBusyPoll(now);
+        }
+    };
+
+    public Reactor(Broker broker, String name) throws IOException {
+        this.broker = broker;
+        this.name = name;
+        this.selector = Selector.open();
+    }
+
+    public String getName() { return name; }
+    public Selector getSelector() { return selector; }
+
+    /**
+     * Timers driven by this reactor's loop; to be used from reactor's thread only.
+     */
+    public TimerWheel getTimers() { return timers; }
+
+    public BusyPoll getBusyPoll() { return busyPoll; }
+
+    /**
+     * Makes this reactor spin instead of blocking in select. Needs to be set before reactor is started.
+     */
+    public void setBusyPoll(BusyPoll busyPoll) { this.busyPoll = busyPoll; }
+
+    /**
+     * Nanoseconds spent so far doing work, spinning, yielding and parked in select - in that order.
+     * Only measured in busy poll mode.
+     */
+    public long[] getPhaseNanos() { return phaseNanos.clone(); }
+
+    /**
+     * Number of loop iterations done so far. Read budgets are handed out per round.
+     */
+    public long getRound() { return round; }
+
+    /**
+     * Round of the reactor current thread runs. Threads which are not reactors (other engines) get
+     * rounds of {@link #OUTSIDE_ROUND_NANOS} taken from System.nanoTime() - not from {@link Clock},
+     * which other engines update only every few milliseconds.
+     */
+    public static long currentRound() {
+        Reactor reactor = currentReactor.get();
+        return reactor != null ? reactor.round : System.nanoTime() / OUTSIDE_ROUND_NANOS;
+    }
+
+    /**
+     * Deflaters of the reactor current thread runs or shared ones for threads which are not reactors.
+     */
+    public static DeflaterPool currentDeflaterPool() {
+        Reactor reactor = currentReactor.get();
+        return reactor != null ? reactor.deflaterPool : sharedDeflaterPool;
+    }
+
+    public boolean isInReactorThread() { return Thread.currentThread() == thread; }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!isInReactorThread()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs task at the end of current loop iteration, once all ready keys are processed. Used for
+     * flushing so everything produced in one iteration goes out together.
+     */
+    public void executeDeferred(Runnable task) {
+        if (isInReactorThread()) {
+            deferred.add(task);
+        } else {
+            execute(task);
+        }
+    }
+
+    public void wakeup() {
+        selector.wakeup();
+    }
+
+    /**
+     * Registers freshly accepted channel with this reactor's selector.
+     */
+    public void register(SocketChannel channel, Handler handler) {
+        if (isInReactorThread()) {
+            doRegister(channel, handler);
+        } else {
+            execute(() -> doRegister(channel, handler));
+        }
+    }
+
+    /**
+     * Takes over channel (and its handler) which is already half way through processing HTTP request
+     * on another reactor.
+     */
+    public void adopt(SocketChannel channel, HTTPRequestHandler handler) {
+        execute(() -> {
+            SelectionKey key = doRegister(channel, handler);
+            if (key != null) {
+                try {
+                    handler.resume(key, channel);
+                } catch (Exception e) {
+                    System.err.println("*** Closing channel: error while resuming request on " + name + ". Channel: " + channel + "; " + e.getClass().getCanonicalName() + "(" + (e.getMessage() != null ? e.getMessage() : "") + ")");
+                    e.printStackTrace();
+                    closeChannel(key);
+                }
+            }
+        });
+    }
+
+    private SelectionKey doRegister(SocketChannel channel, Handler handler) {
+        try {
+            return channel.register(selector, SelectionKey.OP_READ, handler); // Expecting other side to send some data first
+        } catch (ClosedChannelException e) {
+            if (Broker.DEBUG) { System.out.println("*** Channel closed before it got registered with " + name); }
+            return null;
+        }
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        currentReactor.set(this);
+        if (busyPoll != null) {
+            timers.schedule(busyPollReportTimer, Clock.now() + BUSY_POLL_REPORT_PERIOD);
+        }
+        while (!broker.isStopping()) {
+            try {
+                long iterationStart = busyPoll != null ? System.nanoTime() : 0;
+
+                round++;
+                long now = Clock.update();
+                boolean worked = runTasks();
+                worked |= timers.advance(now) > 0;
+                worked |= runDeferred();
+
+                if (busyPoll != null) {
+                    busyPollSelect(worked);
+                } else {
+                    selector.select(selectTimeout(timers, Clock.update()));
+                }
+                Set<SelectionKey> keys = selector.selectedKeys();
+
+                Iterator<SelectionKey> keyIterator = keys.iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+                    try {
+                        if (key.isValid()) {
+                            if (key.isAcceptable()) {
+                                broker.accept(this, key);
+                            } else if (key.isReadable()) {
+                                read(key);
+                            } else if (key.isWritable()) {
+                                write(key);
+                            }
+                        }
+                    } catch (Exception e) {
+                        System.err.println("*** Closing channel: error while handling selection key. Channel: " + key.channel() + "; " + e.getClass().getCanonicalName() + "(" + (e.getMessage() != null ? e.getMessage() : "") + ")");
+                        e.printStackTrace();
+                        closeChannel(key);
+                    }
+                }
+                runDeferred();
+
+                if (busyPoll != null) {
+                    phaseNanos[WORK] += System.nanoTime() - iterationStart - idleNanos;
+                }
+            } catch (Exception e) {
+                System.err.println("Got exception " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            try {
+                key.channel().close();
+            } catch (IOException ignore) { }
+        }
+        try {
+            selector.close();
+        } catch (IOException ignore) { }
+    }
+
+    /**
+     * Fine timer ticks are there for games with high tick rates; reactor still sleeps until next
+     * timer is actually due rather than waking every tick.
+     *
+     * @return milliseconds to wait for next timer; never 0 as that would mean waiting forever
+     */
+    public static long selectTimeout(TimerWheel timers, long now) {
+        long millis = timers.millisToNextExpiry(now);
+        if (millis < 0 || millis > MAX_SELECT_TIMEOUT) {
+            return MAX_SELECT_TIMEOUT;
+        }
+        return Math.max(1, millis);
+    }
+
+    /**
+     * Polls selector without blocking. While there is nothing to do it backs off by spinning, then
+     * yielding and eventually parking in select for short time. Any work done by the loop - selected keys,
+     * tasks, timers or deferred tasks - starts back off from spinning again. Time spent idle in each phase is recorded.
+     */
+    private void busyPollSelect(boolean worked) throws IOException {
+        long start = System.nanoTime();
+        int selected = selector.selectNow();
+        if (worked || selected > 0 || !tasks.isEmpty()) {
+            idleIterations = 0;
+            idleNanos = 0;
+            return;
+        }
+
+        idleIterations++;
+        int phase;
+        if (idleIterations <= busyPoll.getSpins()) {
+            phase = SPIN;
+            Thread.onSpinWait();
+        } else if (idleIterations <= busyPoll.getSpins() + busyPoll.getYields()) {
+            phase = YIELD;
+            Thread.yield();
+        } else {
+            phase = PARK;
+            if (selector.select(busyPoll.getParkMillis()) > 0) {
+                idleIterations = 0;
+            }
+        }
+        idleNanos = System.nanoTime() - start;
+        phaseNanos[phase] += idleNanos;
+    }
+
+    private void reportBusyPoll(long now) {
+        if (Broker.INFO) {
+            long[] delta = new long[phaseNanos.length];
+            for (int i = 0; i < delta.length; i++) {
+                delta[i] = (phaseNanos[i] - reportedPhaseNanos[i]) / 1000000;
+                reportedPhaseNanos[i] = phaseNanos[i];
+            }
+            System.out.println(name + " busy poll in last " + (BUSY_POLL_REPORT_PERIOD / 1000) + "s: work " + delta[WORK] + "ms, spin " + delta[SPIN] + "ms, yield " + delta[YIELD] + "ms, park " + delta[PARK] + "ms");
+        }
+        timers.schedule(busyPollReportTimer, now + BUSY_POLL_REPORT_PERIOD);
+    }
+
+    /**
+     * @return true if there was any task to run
+     */
+    private boolean runTasks() {
+        Runnable task = tasks.poll();
+        boolean ran = task != null;
+        while (task != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.err.println("Got exception running task on " + name + "; " + e.getMessage());
+                e.printStackTrace();
+            }
+            task = tasks.poll();
+        }
+        return ran;
+    }
+
+    /**
+     * @return true if there was any deferred task to run
+     */
+    private boolean runDeferred() {
+        Runnable task = deferred.poll();
+        boolean ran = task != null;
+        while (task != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.err.println("Got exception running deferred task on " + name + "; " + e.getMessage());
+                e.printStackTrace();
+            }
+            task = deferred.poll();
+        }
+        return ran;
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel clientChannel = (SocketChannel) key.channel();
+
+        Handler handler = (Handler)key.attachment();
+        if (handler == null) {
+            throw new IOException("Read: Handler is missing for the channel: " + Broker.logChannel((SocketChannel)key.channel()));
+        }
+
+        handler.read(key, clientChannel);
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Handler handler = (Handler)key.attachment();
+        if (handler == null) {
+            throw new IOException("Write: Handler is missing for the channel: " + Broker.logChannel((SocketChannel)key.channel()));
+        }
+
+        SocketChannel clientChannel = (SocketChannel) key.channel();
+        handler.write(key, clientChannel);
+    }
+
+    private void closeChannel(SelectionKey key) {
+        try {
+            broker.closeChannel(key);
+        } catch (IOException e) {
+            System.err.println("*** Error during closing channel: " + key.channel() + "; " + e.getMessage());
+        }
+    }
+}
@@ -1,17 +1,22 @@
 package org.ah.sigas.broker;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.WritableByteChannel;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * Writes simple response and closes connection. Response can take as many writes as socket
+ * needs; content is written straight from its array, so it can be of any size.
+ */
 public class SimpleHTTPResponseHandler implements Handler {
 
-
-    private ByteBuffer buffer = ByteBuffer.allocate(16384);
+    private ByteBuffer[] response;
 
     public static byte[] CRLF = new byte[] {13, 10};
     private static byte SPACE = 32;
@@ -26,8 +31,6 @@ public class SimpleHTTPResponseHandler implements Handler {
     private Map<String, String> headers;
 
     private byte[] content;
-    private int ptr = 0;
-    private boolean headersSent = false;
 
 
     public SimpleHTTPResponseHandler(
@@ -56,35 +59,41 @@ public class SimpleHTTPResponseHandler implements Handler {
 
     @Override
     public void write(SelectionKey key, WritableByteChannel channel) throws IOException {
-        if (ptr < content.length || !headersSent) {
-            if (!headersSent) {
-                buffer.put(protocol.getBytes());
-                buffer.put(SPACE);
-                buffer.put(Integer.toString(responseCode).getBytes());
-                buffer.put(SPACE);
-                buffer.put(responseMsg.getBytes());
-                buffer.put(CRLF);
-
-                for (Map.Entry<String, String> header : headers.entrySet()) {
-                    buffer.put(header.getKey().getBytes());
-                    buffer.put(HEADER_SEPARATOR);
-                    buffer.put(header.getValue().getBytes());
-                    buffer.put(CRLF);
+        if (response == null) {
+            response = new ByteBuffer[] { encodeHeaders(), ByteBuffer.wrap(content) };
+        } else if (!response[response.length - 1].hasRemaining()) {
+            broker.closeChannel(key);
+            return;
+        }
+        if (channel instanceof GatheringByteChannel) {
+            ((GatheringByteChannel)channel).write(response);
+        } else {
+            for (ByteBuffer buffer : response) {
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    break;
                 }
-                buffer.put(CRLF);
-                headersSent = true;
             }
+        }
+    }
 
-            buffer.put(content);
-            ptr += content.length;
-
-            buffer.flip();
-
-            channel.write(buffer);
-            buffer.clear();
-        } else {
-            broker.closeChannel(key);
+    private ByteBuffer encodeHeaders() {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        buffer.writeBytes(protocol.getBytes());
+        buffer.write(SPACE);
+        buffer.writeBytes(Integer.toString(responseCode).getBytes());
+        buffer.write(SPACE);
+        buffer.writeBytes(responseMsg.getBytes());
+        buffer.writeBytes(CRLF);
+
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            buffer.writeBytes(header.getKey().getBytes());
+            buffer.writeBytes(HEADER_SEPARATOR);
+            buffer.writeBytes(header.getValue().getBytes());
+            buffer.writeBytes(CRLF);
         }
+        buffer.writeBytes(CRLF);
+        return ByteBuffer.wrap(buffer.toByteArray());
     }
 
     @Override
@@ -1,36 +1,125 @@
 package org.ah.sigas.broker.game;
 
 import java.io.IOException;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 import org.ah.sigas.broker.Broker;
 import org.ah.sigas.broker.ClientHandler;
 import org.ah.sigas.broker.ClientOutboundHandlerImpl;
+import org.ah.sigas.broker.FrameDecoder;
+import org.ah.sigas.broker.Handler;
+import org.ah.sigas.broker.Reactor;
+import org.ah.sigas.broker.message.CoalescedMessage;
 import org.ah.sigas.broker.message.HeartBeatMessage;
 import org.ah.sigas.broker.message.Message;
+import org.ah.sigas.broker.message.RelayedMessage;
+import org.ah.sigas.broker.message.StreamedMessage;
+import org.ah.sigas.broker.util.Clock;
+import org.ah.sigas.broker.util.DeflaterPool;
+import org.ah.sigas.broker.util.MpscRingQueue;
+import org.ah.sigas.broker.util.TimerWheel;
+import org.ah.sigas.broker.util.TokenBucket;
 
 public class Client {
 
+    public static final int OUTBOUND_QUEUE_CAPACITY = 4096;
+
+    /**
+     * Capacity of the lane control messages (heartbeats, joins, disconnects) bypass game data through.
+     */
+    public static final int CONTROL_QUEUE_CAPACITY = 256;
+
+    /**
+     * Upper limit for game's max_message_size option.
+     */
+    public static final int MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+    private static final int DFLT_TYPE = Message.intOf("DFLT");
+    private static final int HRTB_TYPE = Message.intOf("HRTB");
+    private static final int BROADCAST_CLIENT_ID = ('0' << 8) | '0';
+
+    /**
+     * Once this many bytes wait to be sent to the client, clients sending to it stop being read.
+     */
+    public static final long OUTBOUND_HIGH_WATER_MARK = 1024 * 1024;
+
+    /**
+     * Reading of the senders resumes when pending bytes fall under this mark.
+     */
+    public static final long OUTBOUND_LOW_WATER_MARK = 256 * 1024;
+
+    /**
+     * Reasons reading of client's inbound stream is paused for.
+     */
+    public static final int PAUSED_BY_BACKPRESSURE = 1;
+    public static final int PAUSED_BY_RATE_LIMIT = 2;
+
     private Game game;
     private boolean master;
     private String token;
     private String clientId;
+    private int clientIdBytes;
     private String alias;
-    private final long createdTimestamp = System.currentTimeMillis();
+    private final long createdTimestamp = Clock.now();
     private long lastActivity;
     private ClientHandler clientInboundHandler;
     private ClientHandler clientOutboundHandler;
 
+    private boolean disconnected = false;
+    private boolean activityCheckScheduled = false;
+    private TimerWheel.Timer activityTimer = new TimerWheel.Timer() {
+        @Override protected void expired(long now) {
+            game.getBroker().executeForGame(game.getGameId(), Client.this::checkActivity);
+        }
+    };
+
     // private LinkedList <Message> receivedMessages = new LinkedList<>();
-    private LinkedList <Message> messagesToSend = new LinkedList<>();
+    private MpscRingQueue<Message> messagesToSend = new MpscRingQueue<>(OUTBOUND_QUEUE_CAPACITY);
+    private MpscRingQueue<Message> controlMessagesToSend = new MpscRingQueue<>(CONTROL_QUEUE_CAPACITY);
+    private AtomicLong pendingBytes = new AtomicLong();
+    private boolean congested = false;
+    private int readingPausedReasons = 0;
+
+    private long droppedMessages = 0;
+    private long droppedBytes = 0;
+    private long expiredMessages = 0;
+
+    private Map<Long, CoalescedMessage> coalesced = new HashMap<>();
+    private long coalescedMessages = 0;
+
+    private StreamedMessage inboundStream;
+
+    private final boolean rateLimited;
+    private final TokenBucket messageRate;
+    private final TokenBucket byteRate;
+    private long rateLimitedMessages = 0;
+    private long rateLimitedBytes = 0;
+    private long rateLimitDelays = 0;
+    private TimerWheel.Timer rateLimitTimer = new TimerWheel.Timer() {
+        @Override protected void expired(long now) {
+            game.getBroker().executeForGame(game.getGameId(), Client.this::checkRateLimits);
+        }
+    };
 
     public Client(Game game, String token, String clientId, String alias, boolean master) {
         this.game = game;
         this.token = token;
         this.clientId = clientId;
+        this.clientIdBytes = ((clientId.charAt(0) & 0xff) << 8) | (clientId.charAt(1) & 0xff);
         this.alias = alias;
         this.master = master;
         lastActivity = createdTimestamp;
+
+        GameOptions options = game.getGameOptions();
+        messageRate = options.getClientMessagesPerSecond() > 0 ? new TokenBucket(options.getClientMessagesPerSecond(), createdTimestamp) : null;
+        byteRate = options.getClientBytesPerSecond() > 0 ? new TokenBucket(options.getClientBytesPerSecond(), createdTimestamp) : null;
+        rateLimited = messageRate != null || byteRate != null || game.getMessageRate() != null || game.getByteRate() != null;
     }
 
     public Game getGame() { return game; }
@@ -47,33 +136,613 @@ public class Client {
     public ClientHandler getOutboundHandler() { return clientOutboundHandler; }
     public void setOutboundHandler(ClientHandler clientOutboundHandler) { this.clientOutboundHandler = clientOutboundHandler; }
 
-    public void touch() { lastActivity = System.currentTimeMillis(); }
+    public boolean isDisconnected() { return disconnected; }
+
+    /**
+     * @return true if client's outbound stream is open and takes large messages in FRAG fragments
+     */
+    public boolean takesFragments() {
+        return clientOutboundHandler instanceof ClientOutboundHandlerImpl && clientOutboundHandler.isOpen()
+                && ((ClientOutboundHandlerImpl)clientOutboundHandler).getFragmentSize() > 0;
+    }
+
+    /**
+     * Records activity - message or new stream - from the client. Must be called on game's thread.
+     */
+    public void touch() throws IOException {
+        lastActivity = Clock.now();
+        if (disconnected) {
+            disconnected = false;
+            if (Broker.INFO) { log("Reconnected"); }
+            game.clientReconnected(this);
+        }
+        if (!activityCheckScheduled && game.getGameOptions().getDisconnectTimeout() > 0) {
+            activityCheckScheduled = true;
+            game.getBroker().schedule(game.getGameId(), activityTimer, lastActivity + game.getGameOptions().getDisconnectTimeout());
+        }
+    }
+
+    private void checkActivity() {
+        activityCheckScheduled = false;
+        if (disconnected || game.isClosed()) {
+            return;
+        }
+        long deadline = lastActivity + game.getGameOptions().getDisconnectTimeout();
+        if (Clock.now() >= deadline) {
+            disconnect("No heartbeat or other activity for " + game.getGameOptions().getDisconnectTimeout() + "ms");
+        } else {
+            activityCheckScheduled = true;
+            game.getBroker().schedule(game.getGameId(), activityTimer, deadline);
+        }
+    }
+
+    private void disconnect(String reason) {
+        if (disconnected) {
+            return;
+        }
+        disconnected = true;
+        if (Broker.INFO) { log(reason + ", disconnecting"); }
+        try {
+            game.clientDisconnected(this);
+        } catch (IOException e) {
+            log("Failed to notify about disconnect; " + e.getMessage(), true);
+        }
+        closeStreams();
+        updateCongestion();
+    }
 
-    public LinkedList<Message> getMessagesToSend() { return messagesToSend; }
+    /**
+     * Slow consumer is not going to catch up with everything queued for it so that is dropped, too.
+     */
+    private void disconnectSlowConsumer() {
+        disconnect("Outbound queue full");
+        Message message = pollMessageToSend();
+        while (message != null) {
+            dropQueued(message, false);
+            message = pollMessageToSend();
+        }
+    }
+
+    public void closeStreams() {
+        closeStream(clientInboundHandler);
+        closeStream(clientOutboundHandler);
+    }
+
+    private void closeStream(ClientHandler handler) {
+        if (handler != null) {
+            SelectionKey key = handler.getAssociatedKey();
+            if (key != null && key.isValid() && key.attachment() == (Handler)handler) {
+                try {
+                    game.getBroker().closeChannel(key);
+                } catch (IOException e) {
+                    log("Failed to close stream; " + e.getMessage(), true);
+                }
+            }
+        }
+    }
+
+    /**
+     * Bulk lane - game data.
+     */
+    public MpscRingQueue<Message> getMessagesToSend() { return messagesToSend; }
+
+    /**
+     * Control lane - always written out before anything in bulk lane.
+     */
+    public MpscRingQueue<Message> getControlMessagesToSend() { return controlMessagesToSend; }
+
+    public long getPendingBytes() { return pendingBytes.get(); }
+    public boolean isCongested() { return congested; }
+    public boolean isReadingPaused() { return readingPausedReasons != 0; }
+
+    /**
+     * Messages (and their bytes) dropped because outbound queue was at its limit, including expired ones.
+     */
+    public long getDroppedMessages() { return droppedMessages; }
+    public long getDroppedBytes() { return droppedBytes; }
+
+    /**
+     * Messages dropped because they waited longer than game's message TTL.
+     */
+    public long getExpiredMessages() { return expiredMessages; }
+
+    /**
+     * Messages which were replaced by newer ones before they were sent.
+     */
+    public long getCoalescedMessages() { return coalescedMessages; }
+
+    /**
+     * Messages (and their bytes) client sent which were dropped for going over rate limits.
+     */
+    public long getRateLimitedMessages() { return rateLimitedMessages; }
+    public long getRateLimitedBytes() { return rateLimitedBytes; }
+
+    /**
+     * Times reading of client's stream was paused for going over rate limits.
+     */
+    public long getRateLimitDelays() { return rateLimitDelays; }
+
+    private static long sizeOf(Message message) {
+        return message.getBodyLength() + 12;
+    }
+
+    /**
+     * Called by outbound stream for each message it has written out.
+     */
+    public void messageSent(Message message) {
+        long pending = pendingBytes.addAndGet(-sizeOf(message));
+        if (congested && pending < OUTBOUND_LOW_WATER_MARK) {
+            game.getBroker().executeForGame(game.getGameId(), this::updateCongestion);
+        }
+    }
+
+    /**
+     * Re-evaluates if this client's outbound stream holds back others. Only client with open outbound
+     * stream which is not considered disconnected can be congested. Must be called on game's thread.
+     */
+    public void updateCongestion() {
+        long pending = pendingBytes.get();
+        boolean outboundOpen = clientOutboundHandler != null && clientOutboundHandler.isOpen();
+        boolean nowCongested;
+        if (!outboundOpen || disconnected || game.isClosed()) {
+            nowCongested = false;
+        } else if (pending > OUTBOUND_HIGH_WATER_MARK) {
+            nowCongested = true;
+        } else if (pending < OUTBOUND_LOW_WATER_MARK) {
+            nowCongested = false;
+        } else {
+            nowCongested = congested;
+        }
+        if (nowCongested != congested) {
+            congested = nowCongested;
+            if (Broker.DEBUG) { log((congested ? "Outbound congested with " : "Outbound drained to ") + pending + " bytes pending"); }
+            game.clientCongestionChanged(this);
+        }
+    }
+
+    /**
+     * Stops reading client's inbound stream for given reason until it is resumed for the same reason.
+     */
+    public void pauseReading(int reason) {
+        boolean wasPaused = isReadingPaused();
+        readingPausedReasons |= reason;
+        if (!wasPaused) {
+            setReadInterest(false);
+        }
+    }
+
+    public void resumeReading(int reason) {
+        boolean wasPaused = isReadingPaused();
+        readingPausedReasons &= ~reason;
+        if (wasPaused && !isReadingPaused()) {
+            setReadInterest(true);
+        }
+    }
+
+    private void setReadInterest(boolean read) {
+        ClientHandler handler = clientInboundHandler;
+        if (handler != null && handler.isOpen()) {
+            SelectionKey key = handler.getAssociatedKey();
+            if (key != null && key.isValid() && key.attachment() == (Handler)handler) {
+                if (Broker.TRACE) { log(read ? "Resuming reading" : "Pausing reading"); }
+                key.interestOps(read ? key.interestOps() | SelectionKey.OP_READ : key.interestOps() & ~SelectionKey.OP_READ);
+            }
+        }
+    }
 
     public void receivedMessage(String type, String header, byte[] body) throws IOException {
-        if (Broker.TRACE) { log("Received message '" + type + "'(" + header + "): \n" + new String(body)); }
+        receivedMessage(Message.intOf(type), Message.intOf(header), ByteBuffer.wrap(body));
+    }
+
+    /**
+     * Handles message decoded from client's inbound stream. Body is valid only during the call, it is
+     * copied (or inflated) into the message routed further.
+     *
+     * @throws FrameDecoder.MessageRejectedException if DFLT message would inflate to more than game's
+     *         max_message_size; client is then disconnected as for any other message that long
+     */
+    public void receivedMessage(int type, int header, ByteBuffer body) throws IOException {
+        byte[] bytes = null;
+        if (type == DFLT_TYPE) {
+            if (body.remaining() < 12) {
+                log("Dropping DFLT message without header", true);
+                return;
+            }
+            type = body.getInt(body.position());
+            header = body.getInt(body.position() + 4);
+            int length = body.getInt(body.position() + 8);
+            int maxMessageSize = game.getGameOptions().getMaxMessageSize();
+            if (length < 0 || length > maxMessageSize) {
+                throw new FrameDecoder.MessageRejectedException("DFLT message '" + Message.asciiOf(type) + "' inflates to "
+                        + Integer.toUnsignedString(length) + " bytes which is longer than " + maxMessageSize);
+            }
+            // Charged as it is going to be relayed, not as it came compressed
+            if (rateLimited && !admit(length + 12)) {
+                return;
+            }
+            try {
+                bytes = inflate(body);
+            } catch (DataFormatException e) {
+                log("Dropping DFLT message '" + Message.asciiOf(type) + "'; " + e.getMessage(), true);
+                return;
+            }
+        } else if (rateLimited && type != HRTB_TYPE && !admit(body.remaining() + 12)) {
+            return;
+        } else if (Message.isRegisteredType(type)) {
+            bytes = new byte[body.remaining()];
+            body.get(bytes);
+        }
+        if (Broker.TRACE) { log("Received message '" + Message.asciiOf(type) + "'(" + Message.asciiOf(header) + "): \n" + (bytes != null ? new String(bytes) : body.remaining() + " bytes relayed")); }
 
-        if (!master || "HRTB".equals(type)) {
+        touch();
+        game.touch();
+
+        if (!master || type == HRTB_TYPE) {
             // Overwrite client ID
-            header = header.substring(0, 2) + clientId.substring(0, 2);
+            header = (header & 0xffff0000) | (clientIdBytes & 0xffff);
         }
 
-        Message message = Message.createMessage(type, header, body);
+        // Messages broker does not look into go out as they came in; only client id in the header is patched
+        Message message = bytes != null ? Message.createMessage(type, header, bytes) : new RelayedMessage(type, header, body);
         if (message instanceof HeartBeatMessage) {
             sendMessage(message);
         } else {
-            game.receivedMessage(this, Message.createMessage(type, header, body));
+            game.receivedMessage(this, message);
+        }
+    }
+
+    /**
+     * Handles header of large message whose body has not arrived yet. Message which is relayed to one
+     * recipient which takes fragments is passed on straight away and its body follows in parts as it
+     * is received, so it can be sent in fragments between other messages.
+     *
+     * @return true if body is to come with {@link #receivedMessagePart(ByteBuffer, boolean)}; false if
+     *         it is to be received whole
+     */
+    public boolean receivedMessageStart(int type, int header, int length) throws IOException {
+        if (type == DFLT_TYPE || type == HRTB_TYPE || Message.isRegisteredType(type)) {
+            return false;
+        }
+        GameOptions options = game.getGameOptions();
+        String typeName = Message.asciiOf(type);
+        if (options.isCoalesced(typeName, Message.shortAsciiOf(header >>> 16)) || options.isControl(typeName)
+                || options.getDeltaTypes().contains(typeName)) {
+            return false;
+        }
+        if (master && (header & 0xffff) == BROADCAST_CLIENT_ID) {
+            return false;
+        }
+        Client recipient = master ? game.getClients().get(Message.shortAsciiOf(header & 0xffff)) : game.getMasterClient();
+        if (recipient == null || !recipient.takesFragments()) {
+            return false;
+        }
+
+        inboundStream = null;
+        if (rateLimited && !admit(length + 12)) {
+            // Rest of dropped message is discarded as it comes
+            return true;
+        }
+        if (Broker.TRACE) { log("Receiving message '" + typeName + "'(" + Message.asciiOf(header) + ") of " + length + " bytes in parts"); }
+
+        touch();
+        game.touch();
+
+        if (!master) {
+            // Overwrite client ID
+            header = (header & 0xffff0000) | (clientIdBytes & 0xffff);
+        }
+
+        StreamedMessage message = new StreamedMessage(type, header, length);
+        game.receivedMessage(this, message);
+        if (message.getReferenceCount() > 0) {
+            inboundStream = message;
+        }
+        return true;
+    }
+
+    /**
+     * Next part of message started with {@link #receivedMessageStart(int, int, int)}.
+     */
+    public void receivedMessagePart(ByteBuffer part, boolean last) {
+        if (inboundStream != null) {
+            inboundStream.append(part);
+            if (last || inboundStream.isAbandoned()) {
+                inboundStream = null;
+            }
+        }
+    }
+
+    /**
+     * Inbound stream closed in the middle of message being passed on in parts.
+     */
+    public void receivedMessageAborted() {
+        if (inboundStream != null) {
+            if (Broker.DEBUG) { log("Inbound stream closed in the middle of message " + inboundStream.getType()); }
+            inboundStream.abort();
+            inboundStream = null;
+        }
+    }
+
+    /**
+     * Takes message of given size from client's and game's rate limits. With {@link RateLimitPolicy#DROP}
+     * message over any of the limits is counted and dropped; otherwise it is let through and reading
+     * is paused until all limits are repaid. Message bigger than a limit's whole second worth is not
+     * dropped if that limit is not used at all; it puts the limit into debt instead.
+     *
+     * @return false if message is to be dropped
+     */
+    private boolean admit(long size) {
+        long now = Clock.now();
+        boolean drop = game.getGameOptions().getRateLimitPolicy() == RateLimitPolicy.DROP;
+        if (drop) {
+            if (!hasTokens(messageRate, 1, now) || !hasTokens(byteRate, size, now)
+                    || !hasTokens(game.getMessageRate(), 1, now) || !hasTokens(game.getByteRate(), size, now)) {
+                rateLimitedMessages++;
+                rateLimitedBytes += size;
+                if (Broker.DEBUG) { log("Over rate limit, dropping message of " + size + " bytes"); }
+                return false;
+            }
+        }
+        take(messageRate, 1, now);
+        take(byteRate, size, now);
+        take(game.getMessageRate(), 1, now);
+        take(game.getByteRate(), size, now);
+
+        if (!drop && (readingPausedReasons & PAUSED_BY_RATE_LIMIT) == 0) {
+            long wait = millisToRepay(now);
+            if (wait > 0) {
+                rateLimitDelays++;
+                if (Broker.DEBUG) { log("Over rate limit, pausing reading for " + wait + "ms"); }
+                pauseReading(PAUSED_BY_RATE_LIMIT);
+                game.getBroker().schedule(game.getGameId(), rateLimitTimer, now + wait);
+            }
+        }
+        return true;
+    }
+
+    private void checkRateLimits() {
+        long now = Clock.now();
+        long wait = millisToRepay(now);
+        if (wait > 0 && !disconnected && !game.isClosed()) {
+            game.getBroker().schedule(game.getGameId(), rateLimitTimer, now + wait);
+        } else {
+            resumeReading(PAUSED_BY_RATE_LIMIT);
+        }
+    }
+
+    private long millisToRepay(long now) {
+        long wait = 0;
+        wait = Math.max(wait, messageRate != null ? messageRate.millisToRepay(now) : 0);
+        wait = Math.max(wait, byteRate != null ? byteRate.millisToRepay(now) : 0);
+        wait = Math.max(wait, game.getMessageRate() != null ? game.getMessageRate().millisToRepay(now) : 0);
+        wait = Math.max(wait, game.getByteRate() != null ? game.getByteRate().millisToRepay(now) : 0);
+        return wait;
+    }
+
+    private static boolean hasTokens(TokenBucket bucket, long amount, long now) {
+        return bucket == null || bucket.canTake(amount, now);
+    }
+
+    private static void take(TokenBucket bucket, long amount, long now) {
+        if (bucket != null) {
+            bucket.take(amount, now);
+        }
+    }
+
+    /**
+     * Inflates body of DFLT message - original message's header followed by deflated body - using
+     * game's preset dictionary.
+     */
+    private byte[] inflate(ByteBuffer deflated) throws DataFormatException {
+        int length = deflated.getInt(deflated.position() + 8);
+        byte[] body = new byte[length];
+        DeflaterPool pool = Reactor.currentDeflaterPool();
+        Inflater inflater = pool.acquireInflater();
+        try {
+            byte[] dictionary = game.getGameOptions().getDeflateDictionary();
+            deflated.position(deflated.position() + 12);
+            inflater.setInput(deflated);
+            int inflated = 0;
+            while (inflated < length && !inflater.finished()) {
+                int n = inflater.inflate(body, inflated, length - inflated);
+                if (n == 0) {
+                    if (inflater.needsDictionary() && dictionary != null) {
+                        inflater.setDictionary(dictionary);
+                        dictionary = null;
+                    } else {
+                        throw new DataFormatException("Truncated message or missing dictionary");
+                    }
+                }
+                inflated += n;
+            }
+            if (inflated != length) {
+                throw new DataFormatException("Inflated " + inflated + " bytes instead of " + length);
+            }
+        } finally {
+            pool.releaseInflater(inflater);
         }
+        return body;
     }
 
+    /**
+     * Queues message for this client's outbound stream. Can be called from any thread; coalescing and
+     * making room for message at queue's limit take messages off the queue so they are done on game's
+     * thread - straight away if already on it.
+     */
     public void sendMessage(Message message) throws IOException {
-        messagesToSend.add(message);
-        if (clientOutboundHandler != null) {
-            ((ClientOutboundHandlerImpl)clientOutboundHandler).clientHasMessages();
-        // } else {
-        //     log("Got message " + message.getType() + " but no clientOutboundHandler");
+        GameOptions options = game.getGameOptions();
+        boolean coalesce = options.isCoalesced(message.getType(), message.getFlags());
+        // Control messages are few and small; limits and policies are there for game data
+        boolean control = options.isControl(message.getType());
+        if (coalesce || (!control && !hasRoomFor(sizeOf(message)))) {
+            message.retain();
+            game.getBroker().executeForGame(game.getGameId(), () -> {
+                try {
+                    queueMessage(message, coalesce, control);
+                } catch (IOException e) {
+                    log("Failed to send message; " + e.getMessage(), true);
+                } finally {
+                    message.release();
+                }
+            });
+        } else {
+            queueMessage(message, false, control);
+        }
+    }
+
+    private void queueMessage(Message message, boolean coalesce, boolean control) throws IOException {
+        CoalescedMessage holder = null;
+        if (coalesce) {
+            long key = CoalescedMessage.keyOf(message);
+            holder = coalesced.get(key);
+            if (holder != null) {
+                message.retain();
+                Message replaced = holder.replace(message);
+                pendingBytes.addAndGet(sizeOf(message) - sizeOf(replaced));
+                replaced.release();
+                coalescedMessages++;
+                return;
+            }
+            holder = new CoalescedMessage(message);
+        }
+
+        if (!control && !makeRoomFor(message)) {
+            dropped(message, false);
+            return;
+        }
+        message.retain();
+        MpscRingQueue<Message> lane = control ? controlMessagesToSend : messagesToSend;
+        int result = lane.offer(holder != null ? holder : message);
+        if (result == MpscRingQueue.FULL) {
+            message.release();
+            dropped(message, false);
+            return;
+        }
+        if (holder != null) {
+            coalesced.put(CoalescedMessage.keyOf(message), holder);
+        }
+        long pending = pendingBytes.addAndGet(sizeOf(message));
+        if (!congested && pending > OUTBOUND_HIGH_WATER_MARK) {
+            game.getBroker().executeForGame(game.getGameId(), this::updateCongestion);
+        }
+        // Writer drains queue until it is empty so it needs waking up only for the first message
+        if (result == MpscRingQueue.OFFERED_TO_EMPTY) {
+            if (!control && game.getGameOptions().getTickHz() > 0) {
+                // Game data waits for the game's next tick
+                game.messagesQueued();
+            } else if (clientOutboundHandler != null) {
+                ((ClientOutboundHandlerImpl)clientOutboundHandler).clientHasMessages();
+            // } else {
+            //     log("Got message " + message.getType() + " but no clientOutboundHandler");
+            }
+        }
+    }
+
+    /**
+     * Writes out whatever is queued for the client - used by games flushing on ticks.
+     */
+    public void flush() {
+        if (clientOutboundHandler != null && !(messagesToSend.isEmpty() && controlMessagesToSend.isEmpty())) {
+            try {
+                ((ClientOutboundHandlerImpl)clientOutboundHandler).clientHasMessages();
+            } catch (IOException e) {
+                log("Failed to flush messages; " + e.getMessage(), true);
+            }
+        }
+    }
+
+    private boolean hasRoomFor(long size) {
+        GameOptions options = game.getGameOptions();
+        return messagesToSend.isEmpty()
+                || (messagesToSend.size() < options.getOutboundMaxMessages() && pendingBytes.get() + size <= options.getOutboundMaxBytes());
+    }
+
+    /**
+     * Applies game's outbound policy when queue is at its limit.
+     *
+     * @return false if message is not to be queued
+     */
+    private boolean makeRoomFor(Message message) {
+        long size = sizeOf(message);
+        if (hasRoomFor(size)) {
+            return true;
+        }
+        switch (game.getGameOptions().getOutboundPolicy()) {
+            case DROP_OLDEST:
+                while (!hasRoomFor(size)) {
+                    dropQueued(pollMessage(messagesToSend), false);
+                }
+                return true;
+            case EXPIRE:
+                Message oldest = messagesToSend.peek();
+                while (oldest != null && isExpired(latestOf(oldest))) {
+                    dropQueued(pollMessage(messagesToSend), true);
+                    oldest = messagesToSend.peek();
+                }
+                return hasRoomFor(size);
+            case DISCONNECT:
+                if (!disconnected) {
+                    game.getBroker().executeForGame(game.getGameId(), this::disconnectSlowConsumer);
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Takes next message off the outbound queue - control lane first; for coalesced messages that is
+     * the latest one queued.
+     * Consumer side of the queue - game's thread only.
+     */
+    public Message pollMessageToSend() {
+        Message message = pollMessage(controlMessagesToSend);
+        return message != null ? message : pollMessage(messagesToSend);
+    }
+
+    private Message pollMessage(MpscRingQueue<Message> lane) {
+        Message message = lane.poll();
+        if (message instanceof CoalescedMessage) {
+            coalesced.remove(CoalescedMessage.keyOf(message));
+        }
+        return latestOf(message);
+    }
+
+    private static Message latestOf(Message message) {
+        return message instanceof CoalescedMessage ? ((CoalescedMessage)message).getLatest() : message;
+    }
+
+    /**
+     * @return true if message waited longer than game's message TTL
+     */
+    public boolean isExpired(Message message) {
+        int ttl = game.getGameOptions().getMessageTtl();
+        return ttl > 0 && Clock.now() - message.getTimestamp() > ttl;
+    }
+
+    /**
+     * Called by outbound stream for each message it took off the queue but won't write as it expired.
+     */
+    public void messageExpired(Message message) {
+        dropQueued(message, true);
+    }
+
+    /**
+     * Takes already queued message out of the accounting and lets go of its frame.
+     */
+    private void dropQueued(Message message, boolean expired) {
+        messageSent(message);
+        message.release();
+        dropped(message, expired);
+    }
+
+    private void dropped(Message message, boolean expired) {
+        droppedMessages++;
+        droppedBytes += sizeOf(message);
+        if (expired) {
+            expiredMessages++;
         }
+        if (Broker.DEBUG) { log((expired ? "Expired" : "Outbound queue full, dropping") + " message " + message.getType()); }
     }
 
     public void log(String msg) {
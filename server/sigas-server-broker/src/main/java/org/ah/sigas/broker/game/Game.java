@@ -5,40 +5,92 @@ import java.util.HashMap;
 import java.util.Map;
 
 import org.ah.sigas.broker.Broker;
+import org.ah.sigas.broker.message.DisconnectedMessage;
 import org.ah.sigas.broker.message.Message;
+import org.ah.sigas.broker.message.ReconnectedMessage;
+import org.ah.sigas.broker.util.Clock;
+import org.ah.sigas.broker.util.TimerWheel;
+import org.ah.sigas.broker.util.TokenBucket;
 
 public class Game {
 
+    /**
+     * Bytes game with weight of 1 can read in one reactor round.
+     */
+    public static final int READ_QUANTUM = 65536;
+
     public static enum State {
         CREATED,
         RUNNING,
     }
 
+    private Broker broker;
     private String gameId;
     private Map<String, Client> clients = new HashMap<>();
 
     private Client masterClient;
 
-    private final long createdTimestamp = System.currentTimeMillis();
+    private final long createdTimestamp = Clock.now();
     private long lastActivity;
 
     private State state = State.CREATED;
     private GameOptions gameOptions;
+    private boolean closed = false;
+
+    private int congestedClients = 0;
+
+    private long readBudgetRound = -1;
+    private int readBudget = 0;
+
+    private final TokenBucket messageRate;
+    private final TokenBucket byteRate;
+
+    private TimerWheel.Timer idleTimer = new TimerWheel.Timer() {
+        @Override protected void expired(long now) {
+            broker.executeForGame(gameId, Game.this::checkIdle);
+        }
+    };
+
+    private boolean tickScheduled = false;
+    private TimerWheel.Timer tickTimer = new TimerWheel.Timer() {
+        @Override protected void expired(long now) {
+            broker.executeForGame(gameId, Game.this::tick);
+        }
+    };
 
-    public Game(String gameId, GameOptions gameOptions) {
+    public Game(Broker broker, String gameId, GameOptions gameOptions) {
+        this.broker = broker;
         this.gameId = gameId;
         this.gameOptions = gameOptions;
         lastActivity = createdTimestamp;
+        messageRate = gameOptions.getGameMessagesPerSecond() > 0 ? new TokenBucket(gameOptions.getGameMessagesPerSecond(), createdTimestamp) : null;
+        byteRate = gameOptions.getGameBytesPerSecond() > 0 ? new TokenBucket(gameOptions.getGameBytesPerSecond(), createdTimestamp) : null;
     }
 
     public long getCreatedTimestamp() { return createdTimestamp; }
 
     public String getGameId() { return gameId; }
 
+    public Broker getBroker() { return broker; }
+
+    public boolean isClosed() { return closed; }
+
+    /**
+     * Messages per second all clients together may send; null if not limited.
+     */
+    TokenBucket getMessageRate() { return messageRate; }
+
+    /**
+     * Bytes per second all clients together may send; null if not limited.
+     */
+    TokenBucket getByteRate() { return byteRate; }
+
     public void addClient(Client client) {
         clients.put(client.getClientId(), client);
         if (client.isMaster()) {
             masterClient = client;
+        } else if (masterClient != null && masterClient.isCongested()) {
+            client.pauseReading(Client.PAUSED_BY_BACKPRESSURE);
         }
     }
 
@@ -54,7 +106,126 @@ public class Game {
 
     public GameOptions getGameOptions() { return gameOptions; }
 
-    public void touch() { lastActivity = System.currentTimeMillis(); }
+    public void touch() { lastActivity = Clock.now(); }
+
+    /**
+     * Deficit round robin between games: each round game's budget is topped up by its weight times
+     * {@link #READ_QUANTUM}; whatever was overspent in the previous round is taken off it.
+     */
+    public boolean hasReadBudget(long round) {
+        if (round != readBudgetRound) {
+            readBudgetRound = round;
+            readBudget = Math.min(readBudget, 0) + gameOptions.getReadWeight() * READ_QUANTUM;
+        }
+        return readBudget > 0;
+    }
+
+    public void consumeReadBudget(int bytes) { readBudget -= bytes; }
+
+    /**
+     * Starts watching game for inactivity. Game without any activity for idle timeout is removed from the broker.
+     */
+    public void scheduleIdleCheck() {
+        if (gameOptions.getIdleTimeout() > 0) {
+            broker.schedule(gameId, idleTimer, lastActivity + gameOptions.getIdleTimeout());
+        }
+    }
+
+    private void checkIdle() {
+        if (closed) {
+            return;
+        }
+        long deadline = lastActivity + gameOptions.getIdleTimeout();
+        if (Clock.now() >= deadline) {
+            if (Broker.INFO) { System.out.println(gameId + ":- Game idle for " + gameOptions.getIdleTimeout() + "ms, removing it"); }
+            close();
+        } else {
+            broker.schedule(gameId, idleTimer, deadline);
+        }
+    }
+
+    /**
+     * Called when game data got queued for a client of a game with ticks. Makes sure next tick is
+     * scheduled; ticks are aligned to game's creation so clients get steady pacing.
+     */
+    void messagesQueued() {
+        if (!tickScheduled && !closed) {
+            tickScheduled = true;
+            long period = gameOptions.getTickPeriod();
+            long nextTick = createdTimestamp + ((Clock.now() - createdTimestamp) / period + 1) * period;
+            broker.schedule(gameId, tickTimer, nextTick);
+        }
+    }
+
+    /**
+     * Flushes everything queued for all clients since the last tick. Next tick is scheduled only when
+     * there is something to send, so quiet games do not keep timers going.
+     */
+    private void tick() {
+        tickScheduled = false;
+        if (closed) {
+            return;
+        }
+        for (Client client : clients.values()) {
+            client.flush();
+        }
+    }
+
+    /**
+     * Removes game from the broker and closes all clients' streams.
+     */
+    public void close() {
+        closed = true;
+        broker.getGames().remove(gameId, this);
+        for (Client client : clients.values()) {
+            client.closeStreams();
+        }
+    }
+
+    /**
+     * Propagates backpressure: congested master pauses reading from all other clients while
+     * any congested client pauses reading from master.
+     */
+    void clientCongestionChanged(Client client) {
+        if (client.isMaster()) {
+            for (Client sourceClient : clients.values()) {
+                if (!sourceClient.isMaster()) {
+                    if (client.isCongested()) {
+                        sourceClient.pauseReading(Client.PAUSED_BY_BACKPRESSURE);
+                    } else {
+                        sourceClient.resumeReading(Client.PAUSED_BY_BACKPRESSURE);
+                    }
+                }
+            }
+        } else if (masterClient != null) {
+            congestedClients += client.isCongested() ? 1 : -1;
+            if (congestedClients > 0) {
+                masterClient.pauseReading(Client.PAUSED_BY_BACKPRESSURE);
+            } else {
+                masterClient.resumeReading(Client.PAUSED_BY_BACKPRESSURE);
+            }
+        }
+    }
+
+    void clientDisconnected(Client client) throws IOException {
+        notifyOthers(client, new DisconnectedMessage(client.getClientId()));
+    }
+
+    void clientReconnected(Client client) throws IOException {
+        notifyOthers(client, new ReconnectedMessage(client.getClientId()));
+    }
+
+    private void notifyOthers(Client client, Message message) throws IOException {
+        if (!client.isMaster()) {
+            masterClient.sendMessage(message);
+        } else {
+            for (Client destinationClient : clients.values()) {
+                if (!destinationClient.isMaster()) {
+                    destinationClient.sendMessage(message);
+                }
+            }
+        }
+    }
 
 
     public void receivedMessage(Client client, Message message) throws IOException {
@@ -63,10 +234,16 @@ public class Game {
         } else {
             String clientId = message.getClientId();
             if ("00".equals(clientId)) {
-                for (Client destinationClient : clients.values()) {
-                    if (!destinationClient.isMaster()) {
-                        destinationClient.sendMessage(message);
+                // Holding a reference keeps frame encoded until all recipients have retained it
+                message.retain();
+                try {
+                    for (Client destinationClient : clients.values()) {
+                        if (!destinationClient.isMaster()) {
+                            destinationClient.sendMessage(message);
+                        }
                     }
+                } finally {
+                    message.release();
                 }
             } else {
                 Client destinationClient = clients.get(clientId);
@@ -1,7 +1,13 @@
 package org.ah.sigas.broker.game;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+
+import org.ah.sigas.broker.message.Message;
 
 public class GameOptions {
 
@@ -9,6 +15,26 @@ public class GameOptions {
     private int maxPlayers = 2;
     private boolean allowLateJoin = false;
     private int heartbeatPeriod = 2000;
+    private int missedHeartbeats = 3;
+    private int idleTimeout = 600000;
+    private int readWeight = 1;
+    private int outboundMaxMessages = Client.OUTBOUND_QUEUE_CAPACITY;
+    private long outboundMaxBytes = 8 * 1024 * 1024;
+    private OutboundPolicy outboundPolicy = OutboundPolicy.DROP_NEWEST;
+    private int messageTtl = 0;
+    private Set<String> coalesceTypes = new HashSet<>();
+    private String coalesceFlags = null;
+    private Set<String> controlTypes = new HashSet<>();
+    private int tickHz = 0;
+    private byte[] deflateDictionary = null;
+    private Set<String> deltaTypes = new HashSet<>();
+    private int deltaKeyframeInterval = 30;
+    private int maxMessageSize = 1024 * 1024;
+    private int clientMessagesPerSecond = 0;
+    private int clientBytesPerSecond = 0;
+    private int gameMessagesPerSecond = 0;
+    private int gameBytesPerSecond = 0;
+    private RateLimitPolicy rateLimitPolicy = RateLimitPolicy.DELAY;
 
     private Map<String, Object> other = new HashMap<String, Object>();
 
@@ -16,6 +42,123 @@ public class GameOptions {
 
     }
 
+    public int getMinPlayers() { return minPlayers; }
+    public int getMaxPlayers() { return maxPlayers; }
+    public boolean isAllowLateJoin() { return allowLateJoin; }
+    public int getHeartbeatPeriod() { return heartbeatPeriod; }
+    public int getMissedHeartbeats() { return missedHeartbeats; }
+    public int getIdleTimeout() { return idleTimeout; }
+
+    /**
+     * Share of reactor's reads game gets compared to other games on the same reactor.
+     */
+    public int getReadWeight() { return readWeight; }
+
+    /**
+     * Most messages queued for one client. Can't be more than {@link Client#OUTBOUND_QUEUE_CAPACITY}.
+     */
+    public int getOutboundMaxMessages() { return outboundMaxMessages; }
+
+    /**
+     * Most bytes of messages queued for one client.
+     */
+    public long getOutboundMaxBytes() { return outboundMaxBytes; }
+
+    /**
+     * What to do when client's outbound queue reaches one of its limits.
+     */
+    public OutboundPolicy getOutboundPolicy() { return outboundPolicy; }
+
+    /**
+     * Milliseconds message can wait for client's outbound stream before it is dropped; 0 for no limit.
+     */
+    public int getMessageTtl() { return messageTtl; }
+
+    /**
+     * Types of messages where only the latest queued one (per flags and client id) is sent.
+     */
+    public Set<String> getCoalesceTypes() { return coalesceTypes; }
+
+    /**
+     * Flags value which marks message for coalescing regardless of its type; null if not used.
+     */
+    public String getCoalesceFlags() { return coalesceFlags; }
+
+    public boolean isCoalesced(String type, String flags) {
+        return (coalesceFlags != null && coalesceFlags.equals(flags)) || coalesceTypes.contains(type);
+    }
+
+    /**
+     * Game's own message types to send through clients' control lane, on top of system ones.
+     */
+    public Set<String> getControlTypes() { return controlTypes; }
+
+    public boolean isControl(String type) {
+        return Message.isControlType(type) || controlTypes.contains(type);
+    }
+
+    /**
+     * Rate at which game data queued for clients is flushed; 0 to write it as soon as it is queued.
+     */
+    public int getTickHz() { return tickHz; }
+
+    /**
+     * Milliseconds between two flushes or 0 if game does not use ticks.
+     */
+    public long getTickPeriod() { return tickHz > 0 ? Math.max(1, 1000 / tickHz) : 0; }
+
+    /**
+     * Preset dictionary messages of this game are deflated with - typically keys and values its JSON
+     * bodies keep repeating. Null if none.
+     */
+    public byte[] getDeflateDictionary() { return deflateDictionary; }
+
+    /**
+     * Types of messages sent as deltas against previous body with the same flags and client id to
+     * clients which can take them.
+     */
+    public Set<String> getDeltaTypes() { return deltaTypes; }
+
+    /**
+     * Most deltas sent in a row before full body is sent again.
+     */
+    public int getDeltaKeyframeInterval() { return deltaKeyframeInterval; }
+
+    /**
+     * Longest body of message clients may send; client sending longer one is disconnected.
+     */
+    public int getMaxMessageSize() { return maxMessageSize; }
+
+    /**
+     * Most messages per second one client may send; 0 for no limit. Heartbeats are not counted.
+     */
+    public int getClientMessagesPerSecond() { return clientMessagesPerSecond; }
+
+    /**
+     * Most bytes per second one client may send; 0 for no limit.
+     */
+    public int getClientBytesPerSecond() { return clientBytesPerSecond; }
+
+    /**
+     * Most messages per second all clients of the game together may send; 0 for no limit.
+     */
+    public int getGameMessagesPerSecond() { return gameMessagesPerSecond; }
+
+    /**
+     * Most bytes per second all clients of the game together may send; 0 for no limit.
+     */
+    public int getGameBytesPerSecond() { return gameBytesPerSecond; }
+
+    /**
+     * What to do with messages sent over one of the rate limits.
+     */
+    public RateLimitPolicy getRateLimitPolicy() { return rateLimitPolicy; }
+
+    /**
+     * Time without any activity after which client is considered disconnected.
+     */
+    public long getDisconnectTimeout() { return (long)heartbeatPeriod * missedHeartbeats; }
+
     public void fromJSON(Map<String, Object> json) {
         if (json == null) {
             json = new HashMap<String, Object>();
@@ -25,11 +168,33 @@ public class GameOptions {
         maxPlayers = getInt(json, "max_players", maxPlayers);
         allowLateJoin = getBoolean(json, "allow_late_join", allowLateJoin);
         heartbeatPeriod = getInt(json, "heartbeat_period", heartbeatPeriod);
+        missedHeartbeats = getInt(json, "missed_heartbeats", missedHeartbeats);
+        idleTimeout = getInt(json, "idle_timeout", idleTimeout);
+        readWeight = Math.max(1, getInt(json, "read_weight", readWeight));
+        outboundMaxMessages = Math.max(1, Math.min(Client.OUTBOUND_QUEUE_CAPACITY, getInt(json, "outbound_max_messages", outboundMaxMessages)));
+        outboundMaxBytes = Math.max(1, getInt(json, "outbound_max_bytes", (int)outboundMaxBytes));
+        outboundPolicy = OutboundPolicy.fromString(getString(json, "outbound_policy", outboundPolicy.name()));
+        messageTtl = Math.max(0, getInt(json, "message_ttl", messageTtl));
+        coalesceTypes = getStringSet(json, "coalesce_types", coalesceTypes);
+        coalesceFlags = getString(json, "coalesce_flags", coalesceFlags);
+        controlTypes = getStringSet(json, "control_types", controlTypes);
+        tickHz = Math.max(0, Math.min(1000, getInt(json, "tick_hz", tickHz)));
+        String dictionary = getString(json, "deflate_dictionary", null);
+        if (dictionary != null) {
+            deflateDictionary = dictionary.getBytes(StandardCharsets.UTF_8);
+        }
+        deltaTypes = getStringSet(json, "delta_types", deltaTypes);
+        maxMessageSize = Math.max(0, Math.min(Client.MAX_MESSAGE_SIZE, getInt(json, "max_message_size", maxMessageSize)));
+        clientMessagesPerSecond = Math.max(0, getInt(json, "client_max_messages_per_second", clientMessagesPerSecond));
+        clientBytesPerSecond = Math.max(0, getInt(json, "client_max_bytes_per_second", clientBytesPerSecond));
+        gameMessagesPerSecond = Math.max(0, getInt(json, "game_max_messages_per_second", gameMessagesPerSecond));
+        gameBytesPerSecond = Math.max(0, getInt(json, "game_max_bytes_per_second", gameBytesPerSecond));
+        rateLimitPolicy = RateLimitPolicy.fromString(getString(json, "rate_limit_policy", rateLimitPolicy.name()));
+        deltaKeyframeInterval = Math.max(0, getInt(json, "delta_keyframe_interval", deltaKeyframeInterval));
 
         other.putAll(json);
     }
 
-    @SuppressWarnings("unused")
     private String getString(Map<String, Object> json, String name, String defaultValue) {
         if (json.containsKey(name)) {
             Object value = json.get(name);
@@ -44,6 +209,28 @@ public class GameOptions {
         return defaultValue;
     }
 
+    private Set<String> getStringSet(Map<String, Object> json, String name, Set<String> defaultValue) {
+        if (json.containsKey(name)) {
+            Object value = json.get(name);
+            json.remove(name);
+            Set<String> result = new HashSet<>();
+            if (value instanceof Collection) {
+                for (Object element : (Collection<?>)value) {
+                    result.add(element.toString());
+                }
+            } else if (value != null) {
+                for (String element : value.toString().split(",")) {
+                    if (!element.trim().isEmpty()) {
+                        result.add(element.trim());
+                    }
+                }
+            }
+            return result;
+        }
+
+        return defaultValue;
+    }
+
     private int getInt(Map<String, Object> json, String name, int defaultValue) {
         if (json.containsKey(name)) {
             Object value = json.get(name);
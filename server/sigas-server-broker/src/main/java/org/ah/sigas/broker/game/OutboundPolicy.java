@@ -0,0 +1,28 @@
+package org.ah.sigas.broker.game;
+
+/**
+ * What happens with a message for a client whose outbound queue is at its limit.
+ */
+public enum OutboundPolicy {
+
+    /** New message is not queued */
+    DROP_NEWEST,
+
+    /** Oldest queued messages are dropped until new one fits */
+    DROP_OLDEST,
+
+    /** Client is disconnected and everything queued for it dropped */
+    DISCONNECT,
+
+    /** Queued messages older than game's message TTL are dropped; if still no room new one is not queued */
+    EXPIRE;
+
+    public static OutboundPolicy fromString(String name) {
+        for (OutboundPolicy policy : values()) {
+            if (policy.name().equalsIgnoreCase(name)) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown outbound policy '" + name + "'");
+    }
+}
@@ -0,0 +1,22 @@
+package org.ah.sigas.broker.game;
+
+/**
+ * What happens with messages client sends faster than game's rate limits allow.
+ */
+public enum RateLimitPolicy {
+
+    /** Message is let through but client's inbound stream is not read until rate is back under the limit */
+    DELAY,
+
+    /** Message is dropped */
+    DROP;
+
+    public static RateLimitPolicy fromString(String name) {
+        for (RateLimitPolicy policy : values()) {
+            if (policy.name().equalsIgnoreCase(name)) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown rate limit policy '" + name + "'");
+    }
+}
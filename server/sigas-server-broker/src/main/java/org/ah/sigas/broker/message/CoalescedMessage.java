@@ -0,0 +1,33 @@
+package org.ah.sigas.broker.message;
+
+/**
+ * Place in client's outbound queue held by the latest of messages with the same type, flags and
+ * client id. Newer message replaces the one held while it waits, so it keeps the older one's place.
+ */
+public class CoalescedMessage extends ZeroLenMessage {
+
+    private Message latest;
+
+    public CoalescedMessage(Message message) {
+        super(message.getTypeCode(), message.getHeader());
+        latest = message;
+    }
+
+    public Message getLatest() { return latest; }
+
+    /**
+     * @return message which got replaced
+     */
+    public Message replace(Message message) {
+        Message replaced = latest;
+        latest = message;
+        return replaced;
+    }
+
+    /**
+     * @return message's type, flags and client id packed together
+     */
+    public static long keyOf(Message message) {
+        return ((long)message.getTypeCode() << 32) | (message.getHeader() & 0xffffffffL);
+    }
+}
@@ -0,0 +1,8 @@
+package org.ah.sigas.broker.message;
+
+public class DisconnectedMessage extends ZeroLenMessage {
+
+    public DisconnectedMessage(String clientId) {
+        super("DISC", "  ", clientId);
+    }
+}
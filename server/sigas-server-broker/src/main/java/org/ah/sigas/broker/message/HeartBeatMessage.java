@@ -10,6 +10,10 @@ public class HeartBeatMessage extends Message {
         super(type, flags, clientId, new byte[] {(byte)(sequence & 0xFF), (byte)((sequence >> 8) & 0xFF)});
     }
 
+    public HeartBeatMessage(int type, int header, byte[] body) {
+        super(type, header, body);
+    }
+
     public int getSequence() {
         int high = body[1] >= 0 ? body[1] : 256 + body[1];
         int low = body[0] >= 0 ? body[0] : 256 + body[0];
@@ -22,5 +22,12 @@ public class JoinedMessage extends Message {
         this.alias = alias;
     }
 
+    /**
+     * Message received from a client - its body is not looked into so alias is not known.
+     */
+    public JoinedMessage(int type, int header, byte[] body) {
+        super(type, header, body);
+    }
+
     public String getAlias() { return alias; }
 }
@@ -1,50 +1,348 @@
 package org.ah.sigas.broker.message;
 
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.Deflater;
+
+import org.ah.sigas.broker.util.BufferPool;
+import org.ah.sigas.broker.util.Clock;
+import org.ah.sigas.broker.util.DeflaterPool;
 
 public abstract class Message {
 
-    private static Map<String, Class<? extends Message>> MESSAGE_TYPES = new HashMap<>();
+    private static volatile FactoryTable FACTORIES = new FactoryTable(16);
+    private static Set<String> CONTROL_TYPES = ConcurrentHashMap.newKeySet();
+    private static Map<Integer, String> ASCII_NAMES = new ConcurrentHashMap<>();
+    private static Map<Integer, String> SHORT_ASCII_NAMES = new ConcurrentHashMap<>();
+
+    private static final int DFLT_TYPE = intOf("DFLT");
+    private static final short NO_FLAGS = 0x2020; // two spaces
+
+    /**
+     * Most distinct message types and headers {@link #asciiOf(int)} remembers.
+     */
+    public static final int MAX_ASCII_NAMES = 4096;
+
+    protected static final byte[] CRLF = new byte[] {'\r', '\n'};
 
-    protected String type;
+    /**
+     * Buffers encoded frames live in. Most messages are small so one pooled buffer fits them.
+     */
+    public static final BufferPool FRAME_POOL = new BufferPool(2048, 4096);
+
+    /**
+     * Message's 12 byte header is kept as it goes on the wire: four bytes of type, two of flags
+     * and two of client id.
+     */
+    protected final int type;
+    protected final int header;
     protected byte[] body;
-    protected String clientId = null;
-    protected String flags = null;
+    private final long timestamp = Clock.now();
 
-    public Message(String type, String flags, String clientId, byte[] body) {
+    private ByteBuffer frame;
+    private ByteBuffer deflatedFrame;
+    private boolean deflateWorthless = false;
+    private int references = 0;
+
+    public Message(int type, int header, byte[] body) {
         this.type = type;
-        this.flags = flags != null ? flags : flags;
-        this.clientId = clientId;
+        this.header = header;
         this.body = body;
     }
 
-    public String getType() { return type; }
+    public Message(String type, String flags, String clientId, byte[] body) {
+        this(intOf(type), headerOf(flags != null ? flags : "  ", clientId), body);
+    }
+
+    public String getType() { return asciiOf(type); }
     public byte[] getBody() { return body; }
+    public int getBodyLength() { return body.length; }
+
+    public String getFlags() { return shortAsciiOf(header >>> 16); }
+    public String getClientId() { return shortAsciiOf(header & 0xffff); }
+
+    /**
+     * Type as four bytes it is sent with, big endian.
+     */
+    public int getTypeCode() { return type; }
+
+    /**
+     * Flags followed by client id as four bytes they are sent with, big endian.
+     */
+    public int getHeader() { return header; }
+
+    /**
+     * Time message was created at - for broker's messages that is when it was received.
+     */
+    public long getTimestamp() { return timestamp; }
+
+    /**
+     * Returns read-only view of this message encoded as one HTTP chunk. Message is encoded only once
+     * no matter how many recipients retain it; each gets its own position in the shared frame.
+     * Every retain must be followed by {@link #release()} once frame is written out.
+     */
+    public synchronized ByteBuffer retain() {
+        if (frame == null) {
+            frame = encode();
+        }
+        references++;
+        return frame.asReadOnlyBuffer();
+    }
+
+    /**
+     * Drops one reference to encoded frame. Frame's buffer goes back to the pool after the last one.
+     */
+    public synchronized void release() {
+        if (references > 0) {
+            references--;
+            if (references == 0) {
+                FRAME_POOL.release(frame);
+                frame = null;
+                if (deflatedFrame != null) {
+                    FRAME_POOL.release(deflatedFrame);
+                    deflatedFrame = null;
+                }
+                deflateWorthless = false;
+                released();
+            }
+        }
+    }
 
-    public String getFlags() { return this.flags; }
-    public String getClientId() { return this.clientId; }
+    /**
+     * Called (holding message's lock) when the last reference is released.
+     */
+    protected void released() {
+    }
+
+    /**
+     * Returns another read-only view of encoded frame for whoever already holds a reference.
+     */
+    public synchronized ByteBuffer getFrame() {
+        if (frame == null) {
+            throw new IllegalStateException("Message " + getType() + " is not retained");
+        }
+        return frame.asReadOnlyBuffer();
+    }
 
-    public static void registerMessageType(String msgType, Class<? extends Message> msgClass) {
-        MESSAGE_TYPES.put(msgType, msgClass);
+    /**
+     * Same as {@link #getFrame()} but message is sent deflated, wrapped in DFLT message. It is deflated
+     * only once for all recipients asking for it. If deflating does not make message smaller plain
+     * frame is returned.
+     */
+    public synchronized ByteBuffer getDeflatedFrame(DeflaterPool pool, byte[] dictionary) {
+        if (frame == null) {
+            throw new IllegalStateException("Message " + getType() + " is not retained");
+        }
+        if (deflatedFrame == null && !deflateWorthless) {
+            deflatedFrame = deflate(pool, dictionary);
+            deflateWorthless = deflatedFrame == null;
+        }
+        return deflatedFrame != null ? deflatedFrame.asReadOnlyBuffer() : frame.asReadOnlyBuffer();
     }
 
-    @SuppressWarnings("unchecked")
-    public static <T extends Message> T createMessage(String type, String header, byte[] body) {
-        Class<? extends Message> cls = MESSAGE_TYPES.get(type);
+    public synchronized int getReferenceCount() { return references; }
+
+    protected ByteBuffer encode() {
+        byte[] chunkSize = Integer.toString(body.length + 12, 16).getBytes();
+        ByteBuffer buffer = FRAME_POOL.acquire(chunkSize.length + 2 + 12 + body.length + 2);
+        buffer.put(chunkSize).put(CRLF);
+        buffer.putInt(type);
+        buffer.putInt(header);
+        buffer.putInt(body.length);
+        buffer.put(body);
+        buffer.put(CRLF);
+        return buffer.flip();
+    }
 
-        if (cls == null) {
-            cls = SimpleBytesMessage.class;
+    /**
+     * Encodes DFLT message: this message's header followed by its body deflated. Chunk size is padded
+     * to 8 hex digits as it is known only after deflating.
+     *
+     * @return null if deflated message would not be smaller
+     */
+    private ByteBuffer deflate(DeflaterPool pool, byte[] dictionary) {
+        byte[] body = getBody();
+        ByteBuffer buffer = FRAME_POOL.acquire(8 + 2 + 12 + 12 + body.length + 2);
+        int maxDeflatedLength = body.length - 12 - 8;
+        if (maxDeflatedLength <= 0) {
+            FRAME_POOL.release(buffer);
+            return null;
         }
+        buffer.position(8);
+        buffer.put(CRLF);
+        buffer.putInt(DFLT_TYPE);
+        buffer.putShort(NO_FLAGS);
+        buffer.putShort((short)header);
+        int lengthPosition = buffer.position();
+        buffer.putInt(0);
+        buffer.putInt(type);
+        buffer.putInt(header);
+        buffer.putInt(body.length);
+        int start = buffer.position();
+        buffer.limit(start + maxDeflatedLength);
 
+        Deflater deflater = pool.acquireDeflater(dictionary);
         try {
-            Constructor<? extends Message> constructor = cls.getConstructor(String.class, String.class, String.class, byte[].class);
+            deflater.setInput(body);
+            deflater.finish();
+            while (!deflater.finished() && buffer.hasRemaining()) {
+                deflater.deflate(buffer);
+            }
+            if (!deflater.finished()) {
+                FRAME_POOL.release(buffer);
+                return null;
+            }
+        } finally {
+            pool.releaseDeflater(deflater);
+        }
+
+        int deflatedBodyLength = 12 + buffer.position() - start;
+        buffer.limit(buffer.capacity());
+        buffer.put(CRLF);
+        buffer.putInt(lengthPosition, deflatedBodyLength);
+        buffer.put(0, String.format("%08x", deflatedBodyLength + 12).getBytes());
+        return buffer.flip();
+    }
+
+    /**
+     * Registers factory messages of given type received from clients are made with. Types without
+     * factory are made {@link SimpleBytesMessage}s.
+     */
+    public static synchronized void registerMessageType(String msgType, MessageFactory factory) {
+        FactoryTable table = FACTORIES;
+        table = table.copy((table.size + 1) * 2 > table.types.length ? table.types.length * 2 : table.types.length);
+        table.put(intOf(msgType), factory);
+        FACTORIES = table;
+    }
+
+    /**
+     * Marks message type as control message. Those go through clients' control lane, ahead of game data.
+     */
+    public static void registerControlType(String msgType) {
+        CONTROL_TYPES.add(msgType);
+    }
+
+    public static boolean isControlType(String msgType) {
+        return CONTROL_TYPES.contains(msgType);
+    }
+
+    /**
+     * Returns four bytes of message's type or header as a string. Strings are shared so decoding
+     * messages of the same type does not allocate new ones every time.
+     */
+    public static String asciiOf(int bytes) {
+        String name = ASCII_NAMES.get(bytes);
+        if (name == null) {
+            name = new String(new char[] {(char)((bytes >>> 24) & 0xff), (char)((bytes >>> 16) & 0xff), (char)((bytes >>> 8) & 0xff), (char)(bytes & 0xff)});
+            if (ASCII_NAMES.size() < MAX_ASCII_NAMES) {
+                ASCII_NAMES.put(bytes, name);
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Same as {@link #asciiOf(int)} for two bytes of flags or client id.
+     */
+    public static String shortAsciiOf(int bytes) {
+        String name = SHORT_ASCII_NAMES.get(bytes);
+        if (name == null) {
+            name = new String(new char[] {(char)((bytes >>> 8) & 0xff), (char)(bytes & 0xff)});
+            if (SHORT_ASCII_NAMES.size() < MAX_ASCII_NAMES) {
+                SHORT_ASCII_NAMES.put(bytes, name);
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Reverse of {@link #asciiOf(int)} - first four characters of string as big endian int.
+     */
+    public static int intOf(String ascii) {
+        return ((ascii.charAt(0) & 0xff) << 24) | ((ascii.charAt(1) & 0xff) << 16) | ((ascii.charAt(2) & 0xff) << 8) | (ascii.charAt(3) & 0xff);
+    }
+
+    public static int headerOf(String flags, String clientId) {
+        return ((flags.charAt(0) & 0xff) << 24) | ((flags.charAt(1) & 0xff) << 16) | ((clientId.charAt(0) & 0xff) << 8) | (clientId.charAt(1) & 0xff);
+    }
+
+    /**
+     * @return true if messages of given type are made with a factory rather than being just bytes
+     */
+    public static boolean isRegisteredType(int type) {
+        return FACTORIES.get(type) != null;
+    }
+
+    /**
+     * Makes message of given type with registered factory or {@link SimpleBytesMessage} if there is none.
+     */
+    public static Message createMessage(int type, int header, byte[] body) {
+        MessageFactory factory = FACTORIES.get(type);
+        if (factory == null) {
+            return new SimpleBytesMessage(type, header, body);
+        }
+        return factory.create(type, header, body);
+    }
+
+    public static Message createMessage(String type, String header, byte[] body) {
+        return createMessage(intOf(type), intOf(header), body);
+    }
+
+    /**
+     * Open addressing table of factories keyed by type. Never changed once published; registering
+     * new type makes a copy.
+     */
+    private static class FactoryTable {
+        private final int[] types;
+        private final MessageFactory[] factories;
+        private int size = 0;
+
+        private FactoryTable(int capacity) {
+            types = new int[capacity];
+            factories = new MessageFactory[capacity];
+        }
+
+        private FactoryTable copy(int capacity) {
+            FactoryTable copy = new FactoryTable(capacity);
+            for (int i = 0; i < types.length; i++) {
+                if (factories[i] != null) {
+                    copy.put(types[i], factories[i]);
+                }
+            }
+            return copy;
+        }
+
+        private void put(int type, MessageFactory factory) {
+            int mask = types.length - 1;
+            int i = mix(type) & mask;
+            while (factories[i] != null && types[i] != type) {
+                i = (i + 1) & mask;
+            }
+            if (factories[i] == null) {
+                size++;
+            }
+            types[i] = type;
+            factories[i] = factory;
+        }
+
+        private MessageFactory get(int type) {
+            int mask = types.length - 1;
+            int i = mix(type) & mask;
+            MessageFactory factory;
+            while ((factory = factories[i]) != null) {
+                if (types[i] == type) {
+                    return factory;
+                }
+                i = (i + 1) & mask;
+            }
+            return null;
+        }
 
-            return (T) constructor.newInstance(type, header.substring(0, 2), header.substring(2, 4), body);
-        } catch (NoSuchMethodException | SecurityException | InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
-            throw new IllegalAccessError("Cannot make new instance of message with type '" + type + "'; " + e.getMessage());
+        private static int mix(int type) {
+            int h = type * 0x9E3779B9;
+            return h ^ (h >>> 16);
         }
     }
 }
@@ -0,0 +1,9 @@
+package org.ah.sigas.broker.message;
+
+/**
+ * Makes message of registered type from what was received from a client.
+ */
+public interface MessageFactory {
+
+    Message create(int type, int header, byte[] body);
+}
@@ -4,7 +4,12 @@ package org.ah.sigas.broker.message;
 public class Messages {
 
     public static void registerAll() {
-        Message.registerMessageType("HRTB", HeartBeatMessage.class);
-        Message.registerMessageType("JOIN", JoinedMessage.class);
+        Message.registerMessageType("HRTB", HeartBeatMessage::new);
+        Message.registerMessageType("JOIN", JoinedMessage::new);
+
+        Message.registerControlType("HRTB");
+        Message.registerControlType("JOIN");
+        Message.registerControlType("DISC");
+        Message.registerControlType("RECN");
     }
 }
@@ -0,0 +1,8 @@
+package org.ah.sigas.broker.message;
+
+public class ReconnectedMessage extends ZeroLenMessage {
+
+    public ReconnectedMessage(String clientId) {
+        super("RECN", "  ", clientId);
+    }
+}
@@ -0,0 +1,58 @@
+package org.ah.sigas.broker.message;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Message of type broker does not look into, relayed from one client to another. It is encoded for
+ * sending straight from the read buffer it was received in and its body gets its own array only if
+ * something asks for it (for instance to deflate it).
+ *
+ * As its frame is the only copy of its body, message can be sent only until the last reference to
+ * it is released.
+ */
+public class RelayedMessage extends Message {
+
+    private ByteBuffer relayed;
+    private int bodyOffset;
+    private int bodyLength;
+
+    public RelayedMessage(int type, int header, ByteBuffer body) {
+        super(type, header, null);
+        bodyLength = body.remaining();
+        byte[] chunkSize = Integer.toString(bodyLength + 12, 16).getBytes();
+        relayed = FRAME_POOL.acquire(chunkSize.length + 2 + 12 + bodyLength + 2);
+        relayed.put(chunkSize).put(CRLF);
+        relayed.putInt(type);
+        relayed.putInt(header);
+        relayed.putInt(bodyLength);
+        bodyOffset = relayed.position();
+        relayed.put(body.duplicate());
+        relayed.put(CRLF);
+        relayed.flip();
+    }
+
+    @Override
+    public int getBodyLength() { return bodyLength; }
+
+    @Override
+    public synchronized byte[] getBody() {
+        if (body == null) {
+            ByteBuffer frame = relayed != null ? relayed : getFrame();
+            body = new byte[bodyLength];
+            frame.get(bodyOffset, body);
+        }
+        return body;
+    }
+
+    @Override
+    protected ByteBuffer encode() {
+        if (relayed == null && body != null) {
+            return super.encode();
+        } else if (relayed == null) {
+            throw new IllegalStateException("Relayed message " + getType() + " was already sent");
+        }
+        ByteBuffer frame = relayed;
+        relayed = null;
+        return frame;
+    }
+}
@@ -6,4 +6,8 @@ public class SimpleBytesMessage extends Message {
         super(type, flags, clientId, body);
     }
 
+    public SimpleBytesMessage(int type, int header, byte[] body) {
+        super(type, header, body);
+    }
+
 }
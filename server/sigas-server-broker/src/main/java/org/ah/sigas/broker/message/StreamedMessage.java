@@ -0,0 +1,125 @@
+package org.ah.sigas.broker.message;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Large relayed message forwarded in fragments to its (only) recipient while its body is still
+ * being received. Encoded frame is just chunk size and message header; body follows in pooled
+ * segments as they arrive and each segment goes back to the pool once written out, so the whole
+ * body is never held unless recipient is slower than sender.
+ *
+ * Body of streamed message is never available as an array.
+ */
+public class StreamedMessage extends Message {
+
+    private final int bodyLength;
+    private final ArrayDeque<ByteBuffer> segments = new ArrayDeque<>();
+    private int polled = 0;
+    private boolean aborted = false;
+    private boolean abandoned = false;
+    private Runnable dataListener;
+
+    public StreamedMessage(int type, int header, int bodyLength) {
+        super(type, header, null);
+        this.bodyLength = bodyLength;
+    }
+
+    @Override
+    public int getBodyLength() { return bodyLength; }
+
+    @Override
+    public byte[] getBody() {
+        throw new IllegalStateException("Body of streamed message " + getType() + " is not held");
+    }
+
+    /**
+     * Sets what is to be called each time more of the body arrives or stream is aborted.
+     */
+    public synchronized void setDataListener(Runnable dataListener) { this.dataListener = dataListener; }
+
+    /**
+     * Copies next part of the body into pooled segments. Does nothing if nobody holds the message any more.
+     */
+    public void append(ByteBuffer part) {
+        Runnable listener;
+        synchronized (this) {
+            if (abandoned) {
+                return;
+            }
+            part = part.duplicate();
+            while (part.hasRemaining()) {
+                ByteBuffer segment = FRAME_POOL.acquire(Math.min(part.remaining(), FRAME_POOL.getBufferSize()));
+                int l = Math.min(part.remaining(), segment.remaining());
+                ByteBuffer slice = part.duplicate();
+                slice.limit(slice.position() + l);
+                segment.put(slice);
+                part.position(part.position() + l);
+                segments.add(segment.flip());
+            }
+            listener = dataListener;
+        }
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Sender went away before whole body arrived.
+     */
+    public void abort() {
+        Runnable listener;
+        synchronized (this) {
+            aborted = true;
+            listener = dataListener;
+        }
+        if (listener != null) {
+            listener.run();
+        }
+    }
+
+    public synchronized boolean isAborted() { return aborted; }
+
+    /**
+     * @return true if nobody holds the message so rest of its body can be discarded
+     */
+    public synchronized boolean isAbandoned() { return abandoned; }
+
+    /**
+     * @return next segment of body, which the caller is to release to {@link Message#FRAME_POOL}; null if
+     *         there is nothing new yet
+     */
+    public synchronized ByteBuffer pollSegment() {
+        ByteBuffer segment = segments.poll();
+        if (segment != null) {
+            polled += segment.remaining();
+        }
+        return segment;
+    }
+
+    /**
+     * @return true once all of the body was handed out by {@link #pollSegment()}
+     */
+    public synchronized boolean isComplete() { return polled == bodyLength; }
+
+    @Override
+    protected ByteBuffer encode() {
+        byte[] chunkSize = Integer.toString(bodyLength + 12, 16).getBytes();
+        ByteBuffer buffer = FRAME_POOL.acquire(chunkSize.length + 2 + 12);
+        buffer.put(chunkSize).put(CRLF);
+        buffer.putInt(type);
+        buffer.putInt(header);
+        buffer.putInt(bodyLength);
+        return buffer.flip();
+    }
+
+    @Override
+    protected void released() {
+        abandoned = true;
+        dataListener = null;
+        for (ByteBuffer segment : segments) {
+            FRAME_POOL.release(segment);
+        }
+        segments.clear();
+    }
+}
@@ -8,4 +8,8 @@ public class ZeroLenMessage extends Message {
         super(type, flags, clientId, EMPTY_BODY);
     }
 
+    public ZeroLenMessage(int type, int header) {
+        super(type, header, EMPTY_BODY);
+    }
+
 }
@@ -0,0 +1,18 @@
+package org.ah.sigas.broker.util;
+
+/**
+ * Coarse wall clock. Reactors update it once per loop iteration so activity tracking
+ * does not need to call {@link System#currentTimeMillis()} for every message.
+ */
+public class Clock {
+
+    private static volatile long now = System.currentTimeMillis();
+
+    public static long now() { return now; }
+
+    public static long update() {
+        long time = System.currentTimeMillis();
+        now = time;
+        return time;
+    }
+}
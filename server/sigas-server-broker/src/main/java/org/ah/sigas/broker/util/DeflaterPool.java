@@ -0,0 +1,55 @@
+package org.ah.sigas.broker.util;
+
+import java.util.ArrayDeque;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reusable deflaters and inflaters, so compressing a message does not allocate native zlib
+ * state every time. Each reactor has its own pool; there is also one shared pool for threads
+ * which are not reactors.
+ */
+public class DeflaterPool {
+
+    public static final int MAX_POOLED = 16;
+
+    private final ArrayDeque<Deflater> deflaters = new ArrayDeque<>();
+    private final ArrayDeque<Inflater> inflaters = new ArrayDeque<>();
+
+    /**
+     * @return deflater in its initial state with given preset dictionary (if any) set
+     */
+    public synchronized Deflater acquireDeflater(byte[] dictionary) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        if (dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        return deflater;
+    }
+
+    public synchronized void releaseDeflater(Deflater deflater) {
+        if (deflaters.size() < MAX_POOLED) {
+            deflater.reset();
+            deflaters.push(deflater);
+        } else {
+            deflater.end();
+        }
+    }
+
+    public synchronized Inflater acquireInflater() {
+        Inflater inflater = inflaters.poll();
+        return inflater != null ? inflater : new Inflater();
+    }
+
+    public synchronized void releaseInflater(Inflater inflater) {
+        if (inflaters.size() < MAX_POOLED) {
+            inflater.reset();
+            inflaters.push(inflater);
+        } else {
+            inflater.end();
+        }
+    }
+}
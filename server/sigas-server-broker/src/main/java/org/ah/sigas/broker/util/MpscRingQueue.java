@@ -0,0 +1,139 @@
+package org.ah.sigas.broker.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, array backed, multi-producer single-consumer queue.
+ *
+ * Any thread can offer elements, but only one thread (the reactor owning the consumer) may
+ * peek and poll. Each slot carries a sequence number which tells producers when it is free
+ * and the consumer when it is published, so neither side allocates anything per element.
+ */
+public class MpscRingQueue<E> {
+
+    /** Element was not added as queue is full */
+    public static final int FULL = 0;
+
+    /** Element was added to a queue which already had elements */
+    public static final int OFFERED = 1;
+
+    /** Element was added to an empty queue - consumer might need waking up */
+    public static final int OFFERED_TO_EMPTY = 2;
+
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+
+    private final AtomicLong producerIndex = new AtomicLong();
+    private volatile long consumerIndex = 0;
+
+    public MpscRingQueue(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive; got " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size = size << 1;
+        }
+        mask = size - 1;
+        elements = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    public int capacity() { return mask + 1; }
+
+    public int size() {
+        return (int)(producerIndex.get() - consumerIndex);
+    }
+
+    public boolean isEmpty() {
+        return producerIndex.get() == consumerIndex;
+    }
+
+    /**
+     * Adds element to the queue. Can be called from any thread.
+     *
+     * @return {@link #FULL}, {@link #OFFERED} or {@link #OFFERED_TO_EMPTY}
+     */
+    public int offer(E element) {
+        long p;
+        int i;
+        while (true) {
+            p = producerIndex.get();
+            i = (int)p & mask;
+            long diff = sequences.get(i) - p;
+            if (diff == 0) {
+                if (producerIndex.compareAndSet(p, p + 1)) {
+                    break;
+                }
+            } else if (diff < 0) {
+                // Slot still holds element from previous lap
+                return FULL;
+            }
+        }
+        elements.lazySet(i, element);
+        sequences.set(i, p + 1);
+
+        return p == consumerIndex ? OFFERED_TO_EMPTY : OFFERED;
+    }
+
+    /**
+     * Returns next element without removing it. Consumer thread only.
+     */
+    public E peek() {
+        long c = consumerIndex;
+        int i = (int)c & mask;
+        if (!awaitPublished(c, i)) {
+            return null;
+        }
+        return elements.get(i);
+    }
+
+    /**
+     * Removes and returns next element. Consumer thread only.
+     */
+    public E poll() {
+        long c = consumerIndex;
+        int i = (int)c & mask;
+        if (!awaitPublished(c, i)) {
+            return null;
+        }
+        E element = elements.get(i);
+        elements.lazySet(i, null);
+        sequences.set(i, c + mask + 1);
+        consumerIndex = c + 1;
+        return element;
+    }
+
+    /**
+     * Removes all elements. Consumer thread only.
+     */
+    public void clear() {
+        while (poll() != null) { }
+    }
+
+    private boolean awaitPublished(long c, int i) {
+        if (sequences.get(i) == c + 1) {
+            return true;
+        }
+        if (producerIndex.get() == c) {
+            return false;
+        }
+        // Producer claimed the slot but has not stored element yet - that is matter of few instructions
+        // unless producer got descheduled in between, so do not keep core busy for too long
+        int spins = 0;
+        while (sequences.get(i) != c + 1) {
+            if (++spins < 100) {
+                Thread.onSpinWait();
+            } else {
+                Thread.yield();
+            }
+        }
+        return true;
+    }
+}
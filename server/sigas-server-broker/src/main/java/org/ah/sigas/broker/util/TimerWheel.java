@@ -0,0 +1,184 @@
+package org.ah.sigas.broker.util;
+
+/**
+ * Hashed timer wheel. Scheduling, cancelling and expiring a timer are all O(1) no matter how
+ * many timers are pending - timers are intrusive list nodes so nothing is allocated either.
+ *
+ * Wheel is not thread safe; it belongs to a single thread (reactor) which drives it by calling
+ * {@link #advance(long)} with current time. Timers fire with tick granularity, never early.
+ */
+public class TimerWheel {
+
+    public abstract static class Timer {
+        private long deadline;
+        private long rounds;
+        private int bucket;
+        private Timer prev;
+        private Timer next;
+        private TimerWheel wheel;
+
+        public boolean isScheduled() { return wheel != null; }
+        public long getDeadline() { return deadline; }
+
+        protected abstract void expired(long now);
+    }
+
+    private final long tickMillis;
+    private final int mask;
+    private final Timer[] buckets;
+    private final long startTime;
+
+    private long currentTick = 0;
+    private int size = 0;
+
+    /**
+     * Tick of the earliest timer; may be early (after cancel) but never late. Not known when behind current tick.
+     */
+    private long nextTick = -1;
+
+    public TimerWheel(long tickMillis, int wheelSize, long now) {
+        if (tickMillis < 1) {
+            throw new IllegalArgumentException("Tick must be at least one millisecond; got " + tickMillis);
+        }
+        if (Integer.bitCount(wheelSize) != 1) {
+            throw new IllegalArgumentException("Wheel size must be power of two; got " + wheelSize);
+        }
+        this.tickMillis = tickMillis;
+        this.mask = wheelSize - 1;
+        this.buckets = new Timer[wheelSize];
+        this.startTime = now;
+    }
+
+    public long getTickMillis() { return tickMillis; }
+    public int size() { return size; }
+    public boolean isEmpty() { return size == 0; }
+
+    /**
+     * Schedules timer to expire at given time. Already scheduled timer is moved.
+     */
+    public void schedule(Timer timer, long deadline) {
+        if (timer.wheel != null) {
+            timer.wheel.cancel(timer);
+        }
+
+        long tick = (deadline - startTime + tickMillis - 1) / tickMillis;
+        if (tick < currentTick) {
+            tick = currentTick;
+        }
+        if (tick < nextTick) {
+            nextTick = tick;
+        }
+        timer.deadline = deadline;
+        timer.rounds = (tick - currentTick) / buckets.length;
+        timer.wheel = this;
+
+        int i = (int)tick & mask;
+        timer.bucket = i;
+        Timer head = buckets[i];
+        timer.prev = null;
+        timer.next = head;
+        if (head != null) {
+            head.prev = timer;
+        }
+        buckets[i] = timer;
+        size++;
+    }
+
+    public void cancel(Timer timer) {
+        if (timer.wheel != this) {
+            return;
+        }
+        unlink(timer, timer.bucket);
+    }
+
+    /**
+     * Expires all timers which are due by given time.
+     *
+     * @return number of timers expired
+     */
+    public int advance(long now) {
+        int count = 0;
+        long targetTick = (now - startTime) / tickMillis;
+        while (currentTick <= targetTick && size > 0) {
+            int i = (int)currentTick & mask;
+
+            Timer expired = null;
+            Timer timer = buckets[i];
+            while (timer != null) {
+                Timer next = timer.next;
+                if (timer.rounds <= 0) {
+                    unlink(timer, i);
+                    timer.next = expired;
+                    expired = timer;
+                } else {
+                    timer.rounds--;
+                }
+                timer = next;
+            }
+
+            currentTick++;
+
+            // Fired only after bucket is processed as callbacks are free to schedule timers again
+            while (expired != null) {
+                Timer next = expired.next;
+                expired.next = null;
+                count++;
+                try {
+                    expired.expired(now);
+                } catch (Exception e) {
+                    System.err.println("Got exception in timer; " + e.getMessage());
+                    e.printStackTrace();
+                }
+                expired = next;
+            }
+        }
+        if (currentTick <= targetTick) {
+            currentTick = targetTick + 1;
+        }
+        return count;
+    }
+
+    /**
+     * Lets owner of the wheel sleep until next timer is due instead of waking every tick.
+     *
+     * @return milliseconds until next timer is due, at most one turn of the wheel; -1 if there are no timers
+     */
+    public long millisToNextExpiry(long now) {
+        if (size == 0) {
+            return -1;
+        }
+        if (nextTick < currentTick) {
+            nextTick = findNextTick();
+        }
+        return Math.max(0, startTime + nextTick * tickMillis - now);
+    }
+
+    /**
+     * Looks for the first bucket with a timer due in this turn of the wheel.
+     */
+    private long findNextTick() {
+        for (int k = 0; k < buckets.length; k++) {
+            for (Timer timer = buckets[(int)(currentTick + k) & mask]; timer != null; timer = timer.next) {
+                if (timer.rounds <= 0) {
+                    return currentTick + k;
+                }
+            }
+        }
+        return currentTick + buckets.length;
+    }
+
+    private void unlink(Timer timer, int bucket) {
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            buckets[bucket] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+        timer.wheel = null;
+        size--;
+    }
+}
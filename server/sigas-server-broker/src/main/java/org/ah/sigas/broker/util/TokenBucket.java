@@ -0,0 +1,72 @@
+package org.ah.sigas.broker.util;
+
+/**
+ * Token bucket refilled at given rate per second, holding at most one second worth of tokens.
+ * Tokens can be taken on credit - bucket then goes into debt which has to be refilled before
+ * anything else can be taken.
+ *
+ * Not thread safe; each bucket is used from its game's thread only.
+ */
+public class TokenBucket {
+
+    private final long ratePerSecond;
+    private long tokens;
+    private long lastRefill;
+
+    public TokenBucket(long ratePerSecond, long now) {
+        this.ratePerSecond = ratePerSecond;
+        this.tokens = ratePerSecond;
+        this.lastRefill = now;
+    }
+
+    public long getRatePerSecond() { return ratePerSecond; }
+
+    /**
+     * @return tokens available at given time; negative if bucket is in debt
+     */
+    public long available(long now) {
+        refill(now);
+        return tokens;
+    }
+
+    /**
+     * Takes given number of tokens even if there are not enough of them.
+     */
+    public void take(long amount, long now) {
+        refill(now);
+        tokens -= amount;
+    }
+
+    /**
+     * Tells if given number of tokens can be taken without going over the rate. More than bucket holds
+     * can be taken only when bucket is full - bucket then goes into debt - so nothing is too big to
+     * ever be taken.
+     */
+    public boolean canTake(long amount, long now) {
+        refill(now);
+        return tokens >= Math.min(amount, ratePerSecond);
+    }
+
+    /**
+     * @return milliseconds until bucket is out of debt; 0 if it is not in debt
+     */
+    public long millisToRepay(long now) {
+        refill(now);
+        return tokens >= 0 ? 0 : (-tokens * 1000 + ratePerSecond - 1) / ratePerSecond;
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefill;
+        if (elapsed > 0) {
+            long refilled = elapsed * ratePerSecond / 1000;
+            if (refilled > 0) {
+                tokens = Math.min(ratePerSecond, tokens + refilled);
+                // Keep the remainder so slow rates still refill
+                lastRefill += refilled * 1000 / ratePerSecond;
+            }
+            if (tokens == ratePerSecond) {
+                lastRefill = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package org.ah.sigas.broker.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Run-length encoded XOR delta between two byte arrays. Base shorter than target is treated as
+ * padded with zeros. Delta is a sequence of pairs: varint count of unchanged bytes followed by
+ * varint count of changed bytes and that many bytes XORed with base.
+ */
+public class XorDelta {
+
+    private XorDelta() { }
+
+    /**
+     * Writes delta turning base into target to the buffer.
+     *
+     * @return false if delta does not fit buffer's remaining bytes - buffer's position is then undefined
+     */
+    public static boolean encode(byte[] base, byte[] target, ByteBuffer out) {
+        int i = 0;
+        while (i < target.length) {
+            int start = i;
+            while (i < target.length && target[i] == byteAt(base, i)) {
+                i++;
+            }
+            int unchanged = i - start;
+            start = i;
+            while (i < target.length && target[i] != byteAt(base, i)) {
+                i++;
+            }
+            int changed = i - start;
+            if (out.remaining() < 10 + changed) {
+                return false;
+            }
+            putVarInt(out, unchanged);
+            putVarInt(out, changed);
+            for (int j = start; j < i; j++) {
+                out.put((byte)(target[j] ^ byteAt(base, j)));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Applies delta read from the buffer to base.
+     *
+     * @return target of given length
+     */
+    public static byte[] apply(byte[] base, ByteBuffer delta, int length) {
+        byte[] target = new byte[length];
+        int i = 0;
+        while (i < length && delta.hasRemaining()) {
+            int unchanged = getVarInt(delta);
+            for (int end = i + unchanged; i < end; i++) {
+                target[i] = byteAt(base, i);
+            }
+            int changed = getVarInt(delta);
+            for (int end = i + changed; i < end; i++) {
+                target[i] = (byte)(delta.get() ^ byteAt(base, i));
+            }
+        }
+        return target;
+    }
+
+    private static byte byteAt(byte[] base, int i) {
+        return i < base.length ? base[i] : 0;
+    }
+
+    private static void putVarInt(ByteBuffer out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.put((byte)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte)value);
+    }
+
+    private static int getVarInt(ByteBuffer in) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,238 @@
+package org.ah.sigas.broker.uring;
+
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.VarHandle;
+
+/**
+ * Single io_uring instance driven by raw syscalls. Submission queue entries are only collected
+ * by prepare methods and handed to the kernel in one batch by {@link #submitAndWait(int)}.
+ *
+ * Not thread safe - ring belongs to the thread which created it.
+ */
+final class IoUring implements AutoCloseable {
+
+    static final byte IORING_OP_READ_FIXED = 4;
+    static final byte IORING_OP_WRITE_FIXED = 5;
+    static final byte IORING_OP_TIMEOUT = 11;
+    static final byte IORING_OP_ACCEPT = 13;
+    static final byte IORING_OP_READ = 22;
+    static final byte IORING_OP_WRITE = 23;
+
+    static final int IORING_ENTER_GETEVENTS = 1;
+    static final int IORING_REGISTER_BUFFERS = 0;
+    static final int IORING_ACCEPT_MULTISHOT = 1;
+    static final int IORING_CQE_F_MORE = 2;
+    static final int IORING_FEAT_SINGLE_MMAP = 1;
+
+    private static final long IORING_OFF_SQ_RING = 0;
+    private static final long IORING_OFF_CQ_RING = 0x8000000L;
+    private static final long IORING_OFF_SQES = 0x10000000L;
+
+    private static final int SQE_SIZE = 64;
+    private static final int CQE_SIZE = 16;
+
+    interface Completion {
+        void completed(long userData, int result, int flags);
+    }
+
+    private int fd;
+    private MemorySegment sqRing;
+    private MemorySegment cqRing;
+    private MemorySegment sqes;
+
+    private long sqHead;
+    private long sqTail;
+    private int sqMask;
+    private int sqEntries;
+    private long cqHead;
+    private long cqTail;
+    private int cqMask;
+    private long cqes;
+
+    private int tail;
+    private int submittedTail;
+
+    IoUring(int entries) throws IOException {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment params = arena.allocate(120);
+            long result = LibC.syscall(LibC.SYS_IO_URING_SETUP, entries, params.address(), 0, 0, 0, 0);
+            if (result < 0) {
+                throw new IOException("io_uring_setup failed; errno " + LibC.errno());
+            }
+            fd = (int)result;
+
+            sqEntries = params.get(JAVA_INT, 0);
+            int cqEntries = params.get(JAVA_INT, 4);
+            int features = params.get(JAVA_INT, 20);
+
+            sqHead = params.get(JAVA_INT, 40);
+            sqTail = params.get(JAVA_INT, 44);
+            long sqMaskOffset = params.get(JAVA_INT, 48);
+            long sqArray = params.get(JAVA_INT, 64);
+
+            cqHead = params.get(JAVA_INT, 80);
+            cqTail = params.get(JAVA_INT, 84);
+            long cqMaskOffset = params.get(JAVA_INT, 88);
+            cqes = params.get(JAVA_INT, 100);
+
+            long sqRingSize = sqArray + sqEntries * 4L;
+            long cqRingSize = cqes + cqEntries * (long)CQE_SIZE;
+            try {
+                if ((features & IORING_FEAT_SINGLE_MMAP) != 0) {
+                    sqRing = LibC.mmap(Math.max(sqRingSize, cqRingSize), fd, IORING_OFF_SQ_RING);
+                    cqRing = sqRing;
+                } else {
+                    sqRing = LibC.mmap(sqRingSize, fd, IORING_OFF_SQ_RING);
+                    cqRing = LibC.mmap(cqRingSize, fd, IORING_OFF_CQ_RING);
+                }
+                sqes = LibC.mmap(sqEntries * (long)SQE_SIZE, fd, IORING_OFF_SQES);
+            } catch (IOException e) {
+                close();
+                throw e;
+            }
+
+            sqMask = sqRing.get(JAVA_INT, sqMaskOffset);
+            cqMask = cqRing.get(JAVA_INT, cqMaskOffset);
+
+            // Submission queue entries are always used in order so array is identity mapping
+            for (int i = 0; i < sqEntries; i++) {
+                sqRing.set(JAVA_INT, sqArray + i * 4L, i);
+            }
+            tail = sqRing.get(JAVA_INT, sqTail);
+            submittedTail = tail;
+        }
+    }
+
+    /**
+     * Registers one region of memory with the kernel so fixed reads and writes can be done into it
+     * without mapping pages in on every call.
+     */
+    boolean registerBuffer(MemorySegment region) {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment iovec = arena.allocate(16);
+            iovec.set(JAVA_LONG, 0, region.address());
+            iovec.set(JAVA_LONG, 8, region.byteSize());
+            return LibC.syscall(LibC.SYS_IO_URING_REGISTER, fd, IORING_REGISTER_BUFFERS, iovec.address(), 1, 0, 0) >= 0;
+        }
+    }
+
+    void prepareAccept(int listenFd, boolean multishot, long userData) throws IOException {
+        long sqe = nextSqe(IORING_OP_ACCEPT, listenFd, 0, 0, 0, userData);
+        sqes.set(JAVA_SHORT, sqe + 2, (short)(multishot ? IORING_ACCEPT_MULTISHOT : 0));
+        sqes.set(JAVA_INT, sqe + 28, LibC.SOCK_CLOEXEC);
+    }
+
+    void prepareRead(int fd, long address, int length, boolean fixed, long userData) throws IOException {
+        nextSqe(fixed ? IORING_OP_READ_FIXED : IORING_OP_READ, fd, address, length, 0, userData);
+    }
+
+    void prepareWrite(int fd, long address, int length, boolean fixed, long userData) throws IOException {
+        nextSqe(fixed ? IORING_OP_WRITE_FIXED : IORING_OP_WRITE, fd, address, length, 0, userData);
+    }
+
+    /**
+     * Completes with -ETIME once given __kernel_timespec elapses.
+     */
+    void prepareTimeout(MemorySegment timespec, long userData) throws IOException {
+        nextSqe(IORING_OP_TIMEOUT, -1, timespec.address(), 1, 0, userData);
+    }
+
+    private long nextSqe(byte opcode, int fd, long address, int length, long offset, long userData) throws IOException {
+        if (tail - sqRing.get(JAVA_INT, sqHead) >= sqEntries) {
+            submitAndWait(0);
+        }
+        long sqe = (tail & sqMask) * (long)SQE_SIZE;
+        for (int i = 0; i < SQE_SIZE; i += 8) {
+            sqes.set(JAVA_LONG, sqe + i, 0);
+        }
+        sqes.set(JAVA_BYTE, sqe, opcode);
+        sqes.set(JAVA_INT, sqe + 4, fd);
+        sqes.set(JAVA_LONG, sqe + 8, offset);
+        sqes.set(JAVA_LONG, sqe + 16, address);
+        sqes.set(JAVA_INT, sqe + 24, length);
+        sqes.set(JAVA_LONG, sqe + 32, userData);
+        tail++;
+        return sqe;
+    }
+
+    /**
+     * Hands all prepared entries over to the kernel and waits for at least given number of completions
+     * - all in one syscall.
+     */
+    void submitAndWait(int minComplete) throws IOException {
+        VarHandle.releaseFence();
+        sqRing.set(JAVA_INT, sqTail, tail);
+        int toSubmit = tail - submittedTail;
+        if (toSubmit == 0 && minComplete == 0) {
+            return;
+        }
+        long result = LibC.syscall(LibC.SYS_IO_URING_ENTER, fd, toSubmit, minComplete, minComplete > 0 ? IORING_ENTER_GETEVENTS : 0, 0, 0);
+        if (result >= 0) {
+            submittedTail += (int)result;
+        } else {
+            int errno = LibC.errno();
+            // Interrupted or completion queue is backed up; completions are to be reaped first
+            if (errno != LibC.EINTR && errno != LibC.EAGAIN && errno != LibC.EBUSY) {
+                throw new IOException("io_uring_enter failed; errno " + errno);
+            }
+        }
+    }
+
+    /**
+     * Passes all available completions to given callback.
+     *
+     * @return number of completions processed
+     */
+    int reap(Completion completion) {
+        int head = cqRing.get(JAVA_INT, cqHead);
+        int available = cqRing.get(JAVA_INT, cqTail);
+        VarHandle.acquireFence();
+        int count = 0;
+        while (head != available) {
+            long cqe = cqes + (head & cqMask) * (long)CQE_SIZE;
+            long userData = cqRing.get(JAVA_LONG, cqe);
+            int result = cqRing.get(JAVA_INT, cqe + 8);
+            int flags = cqRing.get(JAVA_INT, cqe + 12);
+            head++;
+            VarHandle.releaseFence();
+            cqRing.set(JAVA_INT, cqHead, head);
+
+            completion.completed(userData, result, flags);
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public void close() {
+        if (sqes != null) {
+            LibC.munmap(sqes);
+        }
+        if (cqRing != null && cqRing != sqRing) {
+            LibC.munmap(cqRing);
+        }
+        if (sqRing != null) {
+            LibC.munmap(sqRing);
+        }
+        LibC.close(fd);
+    }
+
+    /**
+     * Checks if kernel lets us set up a ring at all - it might be too old or io_uring disabled.
+     */
+    static boolean isSupported() {
+        try {
+            new IoUring(2).close();
+            return true;
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package org.ah.sigas.broker.uring;
+
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.ah.sigas.broker.Broker;
+import org.ah.sigas.broker.Engine;
+import org.ah.sigas.broker.HTTPInternalRequestHandler;
+import org.ah.sigas.broker.HTTPRequestHandler;
+import org.ah.sigas.broker.HTTPServerRequestHandler;
+import org.ah.sigas.broker.Handler;
+import org.ah.sigas.broker.Reactor;
+import org.ah.sigas.broker.util.Clock;
+import org.ah.sigas.broker.util.TimerWheel;
+
+/**
+ * Engine driving all connections from a single io_uring instead of a selector. Linux only.
+ *
+ * Both ports are served by multishot accepts, every read and write goes through memory registered
+ * with the kernel up front and all operations prepared during one loop iteration are submitted
+ * together with waiting for the next completions - in one syscall.
+ *
+ * Handlers are driven by completions: handler's read is called when receive completed and handler's
+ * write when everything it wrote before has been sent. Everything runs on the engine's thread
+ * just like with a single reactor.
+ */
+public class IoUringEngine implements Engine {
+
+    public static final int RING_ENTRIES = 4096;
+    public static final int DEFAULT_MAX_CONNECTIONS = 1024;
+    public static final int SLOT_SIZE = 16384;
+
+    private static final long ACCEPT_SERVER = 1;
+    private static final long ACCEPT_INTERNAL = 2;
+    private static final long WAKEUP = 3;
+    private static final long TIMEOUT = 4;
+
+    private Broker broker;
+    private int maxConnections;
+
+    private volatile Thread thread;
+    private Arena arena;
+    private IoUring ring;
+    private MemorySegment buffers;
+    private boolean fixedBuffers;
+    private boolean multishotAccept = true;
+
+    private int serverFd = -1;
+    private int internalFd = -1;
+
+    private volatile int wakeupFd = -1;
+    private MemorySegment wakeupValue;
+    private AtomicBoolean wakeupPending = new AtomicBoolean();
+
+    private MemorySegment timeout;
+    private boolean timeoutPending = false;
+
+    private RingConnection[] connections;
+    private ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+    private ArrayDeque<RingConnection> ready = new ArrayDeque<>();
+    private List<RingConnection> dirty = new ArrayList<>();
+
+    private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private ArrayDeque<Runnable> deferred = new ArrayDeque<>();
+    private TimerWheel timers = new TimerWheel(Reactor.TIMER_TICK, Reactor.TIMER_WHEEL_SIZE, Clock.now());
+
+    public IoUringEngine(Broker broker) {
+        this(broker, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    public IoUringEngine(Broker broker, int maxConnections) {
+        this.broker = broker;
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * Checks if io_uring can be used on this machine.
+     */
+    public static boolean isAvailable() {
+        return IoUring.isSupported();
+    }
+
+    private void init() throws IOException {
+        arena = Arena.ofShared();
+        ring = new IoUring(RING_ENTRIES);
+
+        connections = new RingConnection[maxConnections];
+        buffers = arena.allocate((long)maxConnections * 2 * SLOT_SIZE, 4096);
+        fixedBuffers = ring.registerBuffer(buffers);
+        if (!fixedBuffers && Broker.INFO) {
+            System.out.println("Cannot register buffers with io_uring (errno " + LibC.errno() + "); using plain reads and writes");
+        }
+        for (int i = 0; i < maxConnections; i++) {
+            freeSlots.add(i);
+        }
+
+        serverFd = LibC.listen(broker.getServerPort(), 1024);
+        internalFd = LibC.listen(broker.getInternalPort(), 64);
+        ring.prepareAccept(serverFd, multishotAccept, ACCEPT_SERVER);
+        ring.prepareAccept(internalFd, multishotAccept, ACCEPT_INTERNAL);
+
+        wakeupValue = arena.allocate(8);
+        timeout = arena.allocate(16);
+        wakeupFd = LibC.eventfd();
+        ring.prepareRead(wakeupFd, wakeupValue.address(), 8, false, WAKEUP);
+    }
+
+    @Override
+    public void loop() {
+        thread = Thread.currentThread();
+        try {
+            init();
+        } catch (Exception e) {
+            System.err.println("Failed to start server; " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+        if (Broker.INFO) { System.out.println("Serving " + maxConnections + " connections from io_uring" + (fixedBuffers ? " with registered buffers" : "")); }
+
+        while (!broker.isStopping()) {
+            try {
+                long now = Clock.update();
+                runTasks();
+                timers.advance(now);
+                processReady();
+                runDeferred();
+                flush();
+
+                if (!timeoutPending) {
+                    long millis = Reactor.selectTimeout(timers, Clock.update());
+                    timeout.set(JAVA_LONG, 0, millis / 1000);
+                    timeout.set(JAVA_LONG, 8, (millis % 1000) * 1000000);
+                    ring.prepareTimeout(timeout, TIMEOUT);
+                    timeoutPending = true;
+                }
+                ring.submitAndWait(ready.isEmpty() && tasks.isEmpty() ? 1 : 0);
+                ring.reap(this::completed);
+            } catch (Exception e) {
+                System.err.println("Got exception " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+
+        for (RingConnection connection : connections) {
+            if (connection != null) {
+                connection.closeSocket();
+            }
+        }
+        LibC.close(serverFd);
+        LibC.close(internalFd);
+        LibC.close(wakeupFd);
+        ring.close();
+        arena.close();
+    }
+
+    @Override
+    public void stop() {
+        wakeup();
+    }
+
+    public boolean isInEngineThread() { return Thread.currentThread() == thread; }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (!isInEngineThread()) {
+            wakeup();
+        }
+    }
+
+    private void wakeup() {
+        if (wakeupFd >= 0 && wakeupPending.compareAndSet(false, true)) {
+            LibC.signal(wakeupFd);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task = tasks.poll();
+        while (task != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.err.println("Got exception running task on io_uring engine; " + e.getMessage());
+                e.printStackTrace();
+            }
+            task = tasks.poll();
+        }
+    }
+
+    private void runDeferred() {
+        Runnable task = deferred.poll();
+        while (task != null) {
+            try {
+                task.run();
+            } catch (Exception e) {
+                System.err.println("Got exception running deferred task on io_uring engine; " + e.getMessage());
+                e.printStackTrace();
+            }
+            task = deferred.poll();
+        }
+    }
+
+    long userData(int slot, int operation) {
+        return ((long)(slot + 1) << 8) | operation;
+    }
+
+    private void completed(long userData, int result, int flags) {
+        int slot = (int)(userData >>> 8) - 1;
+        if (slot < 0) {
+            if (userData == ACCEPT_SERVER || userData == ACCEPT_INTERNAL) {
+                accepted(userData, result, flags);
+            } else if (userData == WAKEUP) {
+                wakeupPending.set(false);
+                if (!broker.isStopping()) {
+                    prepare(() -> ring.prepareRead(wakeupFd, wakeupValue.address(), 8, false, WAKEUP));
+                }
+            } else if (userData == TIMEOUT) {
+                timeoutPending = false;
+            }
+            return;
+        }
+
+        RingConnection connection = connections[slot];
+        if ((userData & 0xff) == RingConnection.OP_RECEIVE) {
+            if (connection.received(result)) {
+                dispatch(connection);
+            } else if (connection.getKey().isValid()) {
+                if (result < 0 && Broker.DEBUG) { System.out.println("*** Receive failed on " + connection + "; errno " + -result); }
+                closeChannel(connection.getKey());
+            }
+        } else {
+            if (!connection.sent(result)) {
+                if (Broker.DEBUG) { System.out.println("*** Send failed on " + connection + "; errno " + -result); }
+                if (connection.getKey().isValid()) {
+                    closeChannel(connection.getKey());
+                }
+                connection.closeSocket();
+            }
+        }
+        closed(connection);
+    }
+
+    private void accepted(long listener, int result, int flags) {
+        if (result >= 0) {
+            Integer slot = freeSlots.poll();
+            if (slot == null) {
+                System.err.println("*** Too many connections; refusing new one");
+                LibC.close(result);
+            } else {
+                Handler handler = listener == ACCEPT_SERVER ? new HTTPServerRequestHandler(broker) : new HTTPInternalRequestHandler(broker);
+                long input = (long)slot * 2 * SLOT_SIZE;
+                long output = input + SLOT_SIZE;
+                RingConnection connection = new RingConnection(this, result, slot,
+                        buffers.address() + input, buffers.asSlice(input, SLOT_SIZE).asByteBuffer(),
+                        buffers.address() + output, buffers.asSlice(output, SLOT_SIZE).asByteBuffer(),
+                        handler);
+                connections[slot] = connection;
+                if (Broker.DEBUG) { System.out.println("*** Accepting channel " + connection); }
+                receive(connection);
+            }
+        } else if (result == -LibC.EINVAL && multishotAccept) {
+            if (Broker.INFO) { System.out.println("Kernel does not support multishot accept; accepting one by one"); }
+            multishotAccept = false;
+        } else if (result != -LibC.ECANCELED) {
+            System.err.println("Got error accepting connection; errno " + -result);
+        }
+
+        if ((flags & IoUring.IORING_CQE_F_MORE) == 0 && !broker.isStopping()) {
+            int fd = listener == ACCEPT_SERVER ? serverFd : internalFd;
+            prepare(() -> ring.prepareAccept(fd, multishotAccept, listener));
+        }
+    }
+
+    private void dispatch(RingConnection connection) {
+        RingKey key = connection.getKey();
+        if (!key.isValid()) {
+            return;
+        }
+        try {
+            Handler handler = (Handler)key.attachment();
+            if (handler == null) {
+                throw new IOException("Handler is missing for the channel: " + connection);
+            }
+            int ops = key.interestOps();
+            if ((ops & SelectionKey.OP_READ) != 0 && connection.hasInput()) {
+                handler.read(key, connection);
+                if (key.isValid() && (key.interestOps() & SelectionKey.OP_READ) != 0) {
+                    // New handler might have been attached which is yet to see what is left or
+                    // handler used up its read budget and needs to be asked again next round
+                    if (connection.hasInput()) {
+                        ready(connection);
+                    }
+                    connection.submitReceive(ring, fixedBuffers);
+                }
+            } else if ((ops & SelectionKey.OP_WRITE) != 0) {
+                handler.write(key, connection);
+            }
+        } catch (Exception e) {
+            System.err.println("*** Closing channel: error while handling completion. Channel: " + connection + "; " + e.getClass().getCanonicalName() + "(" + (e.getMessage() != null ? e.getMessage() : "") + ")");
+            e.printStackTrace();
+            closeChannel(key);
+        }
+    }
+
+    /**
+     * Handlers marked ready while previous ones were processed wait for the next iteration.
+     */
+    private void processReady() {
+        int count = ready.size();
+        while (count > 0) {
+            RingConnection connection = ready.poll();
+            connection.ready = false;
+            dispatch(connection);
+            count--;
+        }
+    }
+
+    /**
+     * Sends out everything handlers wrote in this iteration - one send per connection.
+     */
+    private void flush() {
+        for (RingConnection connection : dirty) {
+            try {
+                connection.submitSend(ring, fixedBuffers);
+            } catch (IOException e) {
+                System.err.println("*** Failed to submit send for " + connection + "; " + e.getMessage());
+            }
+        }
+        dirty.clear();
+    }
+
+    void ready(RingConnection connection) {
+        if (!connection.ready) {
+            connection.ready = true;
+            ready.add(connection);
+        }
+    }
+
+    void dirty(RingConnection connection) {
+        if (!connection.dirty) {
+            connection.dirty = true;
+            dirty.add(connection);
+        }
+    }
+
+    void receive(RingConnection connection) {
+        try {
+            connection.submitReceive(ring, fixedBuffers);
+        } catch (IOException e) {
+            System.err.println("*** Closing channel: " + connection + "; " + e.getMessage());
+            closeChannel(connection.getKey());
+        }
+    }
+
+    /**
+     * Slot is reused only once kernel is done with both of its buffers.
+     */
+    void closed(RingConnection connection) {
+        if (connection.isIdle() && connections[connection.getSlot()] == connection) {
+            connections[connection.getSlot()] = null;
+            freeSlots.add(connection.getSlot());
+        }
+    }
+
+    private void closeChannel(SelectionKey key) {
+        try {
+            broker.closeChannel(key);
+        } catch (IOException e) {
+            System.err.println("*** Error during closing channel: " + key.channel() + "; " + e.getMessage());
+        }
+    }
+
+    private interface Preparation {
+        void prepare() throws IOException;
+    }
+
+    private void prepare(Preparation preparation) {
+        try {
+            preparation.prepare();
+        } catch (IOException e) {
+            System.err.println("Got exception preparing io_uring operation; " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void executeForGame(String gameId, Runnable command) {
+        if (isInEngineThread()) {
+            command.run();
+        } else {
+            execute(command);
+        }
+    }
+
+    /**
+     * Deferred commands run after all ready connections are processed, just before output is flushed.
+     */
+    @Override
+    public void executeDeferredForGame(String gameId, Runnable command) {
+        if (isInEngineThread()) {
+            deferred.add(command);
+        } else {
+            execute(command);
+        }
+    }
+
+    @Override
+    public void schedule(String gameId, TimerWheel.Timer timer, long deadline) {
+        if (isInEngineThread()) {
+            timers.schedule(timer, deadline);
+        } else {
+            execute(() -> timers.schedule(timer, deadline));
+        }
+    }
+
+    @Override
+    public boolean bindToGame(SelectionKey key, String gameId, HTTPRequestHandler handler) {
+        // All games live on the one engine thread
+        return false;
+    }
+}
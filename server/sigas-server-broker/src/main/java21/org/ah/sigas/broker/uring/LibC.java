@@ -0,0 +1,293 @@
+package org.ah.sigas.broker.uring;
+
+import static java.lang.foreign.ValueLayout.ADDRESS;
+import static java.lang.foreign.ValueLayout.JAVA_BYTE;
+import static java.lang.foreign.ValueLayout.JAVA_INT;
+import static java.lang.foreign.ValueLayout.JAVA_LONG;
+import static java.lang.foreign.ValueLayout.JAVA_SHORT;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.StructLayout;
+import java.lang.invoke.MethodHandle;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteOrder;
+
+/**
+ * Thin downcalls into libc for things java.nio does not expose: raw io_uring syscalls, mmap and
+ * plain socket file descriptors. All calls return -1 on failure with errno available from {@link #errno()}.
+ */
+final class LibC {
+
+    static final int AF_INET = 2;
+    static final int AF_INET6 = 10;
+    static final int SOCK_STREAM = 1;
+    static final int SOCK_CLOEXEC = 02000000;
+    static final int SOL_SOCKET = 1;
+    static final int SO_REUSEADDR = 2;
+    static final int SO_SNDBUF = 7;
+    static final int SO_RCVBUF = 8;
+    static final int SO_KEEPALIVE = 9;
+    static final int IPPROTO_TCP = 6;
+    static final int TCP_NODELAY = 1;
+    static final int IPPROTO_IPV6 = 41;
+    static final int IPV6_V6ONLY = 26;
+    static final int SHUT_RD = 0;
+    static final int SHUT_WR = 1;
+    static final int SHUT_RDWR = 2;
+
+    static final int PROT_READ = 1;
+    static final int PROT_WRITE = 2;
+    static final int MAP_SHARED = 1;
+    static final int MAP_POPULATE = 0x8000;
+
+    static final int EINTR = 4;
+    static final int EAGAIN = 11;
+    static final int EBUSY = 16;
+    static final int EINVAL = 22;
+    static final int ETIME = 62;
+    static final int ECANCELED = 125;
+
+    static final long SYS_IO_URING_SETUP = 425;
+    static final long SYS_IO_URING_ENTER = 426;
+    static final long SYS_IO_URING_REGISTER = 427;
+
+    private static final StructLayout CALL_STATE = Linker.Option.captureStateLayout();
+    private static final long ERRNO_OFFSET = CALL_STATE.byteOffset(MemoryLayout.PathElement.groupElement("errno"));
+
+    private static final ThreadLocal<MemorySegment> callState = ThreadLocal.withInitial(() -> Arena.global().allocate(CALL_STATE));
+
+    private static final MemorySegment ONE = Arena.global().allocate(JAVA_LONG);
+
+    private static final MethodHandle SYSCALL;
+    private static final MethodHandle MMAP;
+    private static final MethodHandle MUNMAP;
+    private static final MethodHandle SOCKET;
+    private static final MethodHandle SETSOCKOPT;
+    private static final MethodHandle GETSOCKOPT;
+    private static final MethodHandle BIND;
+    private static final MethodHandle LISTEN;
+    private static final MethodHandle SHUTDOWN;
+    private static final MethodHandle CLOSE;
+    private static final MethodHandle EVENTFD;
+    private static final MethodHandle WRITE;
+    private static final MethodHandle GETSOCKNAME;
+    private static final MethodHandle GETPEERNAME;
+
+    static {
+        ONE.set(JAVA_LONG, 0, 1L);
+
+        Linker linker = Linker.nativeLinker();
+        Linker.Option errno = Linker.Option.captureCallState("errno");
+
+        SYSCALL = linker.downcallHandle(linker.defaultLookup().find("syscall").orElseThrow(),
+                FunctionDescriptor.of(JAVA_LONG, JAVA_LONG, JAVA_LONG, JAVA_LONG, JAVA_LONG, JAVA_LONG, JAVA_LONG, JAVA_LONG),
+                Linker.Option.firstVariadicArg(1), errno);
+        MMAP = downcall(linker, "mmap", FunctionDescriptor.of(ADDRESS, ADDRESS, JAVA_LONG, JAVA_INT, JAVA_INT, JAVA_INT, JAVA_LONG), errno);
+        MUNMAP = downcall(linker, "munmap", FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_LONG), errno);
+        SOCKET = downcall(linker, "socket", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT), errno);
+        SETSOCKOPT = downcall(linker, "setsockopt", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT), errno);
+        GETSOCKOPT = downcall(linker, "getsockopt", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT, JAVA_INT, ADDRESS, ADDRESS), errno);
+        BIND = downcall(linker, "bind", FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT), errno);
+        LISTEN = downcall(linker, "listen", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT), errno);
+        SHUTDOWN = downcall(linker, "shutdown", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT), errno);
+        CLOSE = downcall(linker, "close", FunctionDescriptor.of(JAVA_INT, JAVA_INT), errno);
+        EVENTFD = downcall(linker, "eventfd", FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT), errno);
+        WRITE = downcall(linker, "write", FunctionDescriptor.of(JAVA_LONG, JAVA_INT, ADDRESS, JAVA_LONG), errno);
+        GETSOCKNAME = downcall(linker, "getsockname", FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, ADDRESS), errno);
+        GETPEERNAME = downcall(linker, "getpeername", FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, ADDRESS), errno);
+    }
+
+    private LibC() { }
+
+    private static MethodHandle downcall(Linker linker, String name, FunctionDescriptor descriptor, Linker.Option errno) {
+        return linker.downcallHandle(linker.defaultLookup().find(name).orElseThrow(), descriptor, errno);
+    }
+
+    /**
+     * Errno of the last failed call made by the current thread.
+     */
+    static int errno() {
+        return callState.get().get(JAVA_INT, ERRNO_OFFSET);
+    }
+
+    static long syscall(long number, long a1, long a2, long a3, long a4, long a5, long a6) {
+        try {
+            return (long)SYSCALL.invokeExact(callState.get(), number, a1, a2, a3, a4, a5, a6);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static MemorySegment mmap(long length, int fd, long offset) throws IOException {
+        MemorySegment address;
+        try {
+            address = (MemorySegment)MMAP.invokeExact(callState.get(), MemorySegment.NULL, length, PROT_READ | PROT_WRITE, MAP_SHARED | MAP_POPULATE, fd, offset);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+        if (address.address() == -1L) {
+            throw new IOException("mmap failed; errno " + errno());
+        }
+        return address.reinterpret(length);
+    }
+
+    static void munmap(MemorySegment segment) {
+        try {
+            int ignore = (int)MUNMAP.invokeExact(callState.get(), segment, segment.byteSize());
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static int shutdown(int fd, int how) {
+        try {
+            return (int)SHUTDOWN.invokeExact(callState.get(), fd, how);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static void setSocketOption(int fd, int level, int name, int value) throws IOException {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment flag = arena.allocate(JAVA_INT);
+            flag.set(JAVA_INT, 0, value);
+            if ((int)SETSOCKOPT.invokeExact(callState.get(), fd, level, name, flag, 4) < 0) {
+                throw new IOException("setsockopt failed; errno " + errno());
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static int getSocketOption(int fd, int level, int name) throws IOException {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment value = arena.allocate(JAVA_INT);
+            MemorySegment length = arena.allocate(JAVA_INT);
+            length.set(JAVA_INT, 0, 4);
+            if ((int)GETSOCKOPT.invokeExact(callState.get(), fd, level, name, value, length) < 0) {
+                throw new IOException("getsockopt failed; errno " + errno());
+            }
+            return value.get(JAVA_INT, 0);
+        } catch (IOException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static int close(int fd) {
+        try {
+            return (int)CLOSE.invokeExact(callState.get(), fd);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static int eventfd() throws IOException {
+        int fd;
+        try {
+            fd = (int)EVENTFD.invokeExact(callState.get(), 0, SOCK_CLOEXEC);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+        if (fd < 0) {
+            throw new IOException("eventfd failed; errno " + errno());
+        }
+        return fd;
+    }
+
+    /**
+     * Adds one to eventfd counter, waking up whoever waits on reading it.
+     */
+    static void signal(int eventFd) {
+        try {
+            long ignore = (long)WRITE.invokeExact(callState.get(), eventFd, ONE, 8L);
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    /**
+     * Opens listening socket on all interfaces - dual stack if IPv6 is available.
+     */
+    static int listen(int port, int backlog) throws IOException {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment flag = arena.allocate(JAVA_INT);
+            MemorySegment address;
+
+            int fd = (int)SOCKET.invokeExact(callState.get(), AF_INET6, SOCK_STREAM | SOCK_CLOEXEC, 0);
+            if (fd >= 0) {
+                flag.set(JAVA_INT, 0, 0);
+                int ignore = (int)SETSOCKOPT.invokeExact(callState.get(), fd, IPPROTO_IPV6, IPV6_V6ONLY, flag, 4);
+                address = arena.allocate(28); // sockaddr_in6 with in6addr_any
+                address.set(JAVA_SHORT, 0, (short)AF_INET6);
+            } else {
+                fd = (int)SOCKET.invokeExact(callState.get(), AF_INET, SOCK_STREAM | SOCK_CLOEXEC, 0);
+                if (fd < 0) {
+                    throw new IOException("socket failed; errno " + errno());
+                }
+                address = arena.allocate(16); // sockaddr_in with INADDR_ANY
+                address.set(JAVA_SHORT, 0, (short)AF_INET);
+            }
+            address.set(JAVA_SHORT.withOrder(ByteOrder.BIG_ENDIAN), 2, (short)port);
+
+            flag.set(JAVA_INT, 0, 1);
+            int ignore = (int)SETSOCKOPT.invokeExact(callState.get(), fd, SOL_SOCKET, SO_REUSEADDR, flag, 4);
+
+            if ((int)BIND.invokeExact(callState.get(), fd, address, (int)address.byteSize()) < 0) {
+                int errno = errno();
+                close(fd);
+                throw new IOException("Cannot bind to port " + port + "; errno " + errno);
+            }
+            if ((int)LISTEN.invokeExact(callState.get(), fd, backlog) < 0) {
+                int errno = errno();
+                close(fd);
+                throw new IOException("Cannot listen on port " + port + "; errno " + errno);
+            }
+            return fd;
+        } catch (IOException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+
+    static InetSocketAddress getLocalAddress(int fd) throws IOException {
+        return socketAddress(GETSOCKNAME, fd);
+    }
+
+    static InetSocketAddress getRemoteAddress(int fd) throws IOException {
+        return socketAddress(GETPEERNAME, fd);
+    }
+
+    private static InetSocketAddress socketAddress(MethodHandle call, int fd) throws IOException {
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment address = arena.allocate(128);
+            MemorySegment length = arena.allocate(JAVA_INT);
+            length.set(JAVA_INT, 0, 128);
+            if ((int)call.invokeExact(callState.get(), fd, address, length) < 0) {
+                throw new IOException("Cannot get socket address; errno " + errno());
+            }
+            int port = Short.toUnsignedInt(address.get(JAVA_SHORT.withOrder(ByteOrder.BIG_ENDIAN), 2));
+            byte[] ip;
+            if (address.get(JAVA_SHORT, 0) == AF_INET6) {
+                ip = address.asSlice(8, 16).toArray(JAVA_BYTE);
+            } else {
+                ip = address.asSlice(4, 4).toArray(JAVA_BYTE);
+            }
+            return new InetSocketAddress(InetAddress.getByAddress(ip), port);
+        } catch (IOException e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
+    }
+}
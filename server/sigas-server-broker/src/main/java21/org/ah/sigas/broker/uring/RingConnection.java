@@ -0,0 +1,546 @@
+package org.ah.sigas.broker.uring;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketImpl;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AlreadyBoundException;
+import java.nio.channels.AlreadyConnectedException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.IllegalBlockingModeException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Set;
+
+import org.ah.sigas.broker.Handler;
+
+/**
+ * Accepted socket served by io_uring. Each connection owns one input and one output slot of
+ * engine's registered buffer.
+ *
+ * Reads are completed into input slot and handed to handler from there; handler's writes are
+ * copied to output slot, as much as fits, and sent once per loop iteration. When slot is full
+ * write takes nothing, like full socket would, and handler is to wait for OP_WRITE.
+ * Socket is closed only after everything written to it has been sent.
+ */
+public class RingConnection extends SocketChannel {
+
+    static final int OP_RECEIVE = 1;
+    static final int OP_SEND = 2;
+
+    private IoUringEngine engine;
+    private int fd;
+    private int slot;
+    private RingKey key;
+
+    private long inputAddress;
+    private ByteBuffer input;
+    private long outputAddress;
+    private ByteBuffer output;
+    private int sent = 0;
+
+    private boolean receiving = false;
+    private boolean sending = false;
+    private boolean closing = false;
+    private boolean fdClosed = false;
+    private boolean inputShutdown = false;
+    private boolean outputShutdown = false;
+
+    boolean ready = false;
+    boolean dirty = false;
+
+    private InetSocketAddress remoteAddress;
+    private Socket socket;
+
+    RingConnection(IoUringEngine engine, int fd, int slot, long inputAddress, ByteBuffer input, long outputAddress, ByteBuffer output, Handler handler) {
+        super(SelectorProvider.provider());
+        this.engine = engine;
+        this.fd = fd;
+        this.slot = slot;
+        this.inputAddress = inputAddress;
+        this.input = input;
+        this.outputAddress = outputAddress;
+        this.output = output;
+        input.clear().flip();
+        output.clear();
+
+        key = new RingKey(this, SelectionKey.OP_READ); // Expecting other side to send some data first
+        key.attach(handler);
+    }
+
+    RingKey getKey() { return key; }
+    int getSlot() { return slot; }
+
+    boolean isIdle() { return fdClosed && !receiving && !sending; }
+
+    boolean hasInput() { return input.hasRemaining(); }
+
+    private boolean isOutputDrained() { return !sending && sent == output.position(); }
+
+    private boolean isWritable() { return !outputShutdown && output.hasRemaining(); }
+
+    void interestChanged() {
+        if (!engine.isInEngineThread()) {
+            engine.execute(this::interestChanged);
+            return;
+        }
+        if (!key.isValid()) {
+            return;
+        }
+        int ops = key.interestOps();
+        if ((ops & SelectionKey.OP_READ) != 0) {
+            if (input.hasRemaining()) {
+                engine.ready(this);
+            }
+            if (!receiving) {
+                engine.receive(this);
+            }
+        }
+        if ((ops & SelectionKey.OP_WRITE) != 0 && isWritable()) {
+            engine.ready(this);
+        }
+    }
+
+    /**
+     * Submits read into whatever is left of input slot after unconsumed input. Nothing is read while
+     * slot is full; handler will be asked to consume it first.
+     */
+    void submitReceive(IoUring ring, boolean fixed) throws IOException {
+        if (receiving || closing || inputShutdown) {
+            return;
+        }
+        input.compact();
+        if (!input.hasRemaining()) {
+            input.flip();
+            return;
+        }
+        ring.prepareRead(fd, inputAddress + input.position(), input.remaining(), fixed, engine.userData(slot, OP_RECEIVE));
+        input.flip();
+        receiving = true;
+    }
+
+    /**
+     * @return false if other side closed the connection or receive failed
+     */
+    boolean received(int result) {
+        receiving = false;
+        if (inputShutdown && !closing) {
+            return true;
+        }
+        if (result <= 0 || closing) {
+            return false;
+        }
+        input.limit(input.limit() + result);
+        return true;
+    }
+
+    void submitSend(IoUring ring, boolean fixed) throws IOException {
+        dirty = false;
+        if (sending || fdClosed || sent == output.position()) {
+            return;
+        }
+        ring.prepareWrite(fd, outputAddress + sent, output.position() - sent, fixed, engine.userData(slot, OP_SEND));
+        sending = true;
+    }
+
+    /**
+     * @return false if send failed
+     */
+    boolean sent(int result) {
+        sending = false;
+        if (result < 0) {
+            return false;
+        }
+        sent += result;
+        if (sent == output.position()) {
+            sent = 0;
+            output.clear();
+        }
+        if (sent < output.position()) {
+            engine.dirty(this);
+        } else if (closing) {
+            closeSocket();
+            return true;
+        } else if (outputShutdown) {
+            LibC.shutdown(fd, LibC.SHUT_WR);
+        }
+        if (key.isValid() && (key.interestOps() & SelectionKey.OP_WRITE) != 0 && isWritable()) {
+            engine.ready(this);
+        }
+        return true;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!input.hasRemaining()) {
+            return inputShutdown ? -1 : 0;
+        }
+        return copy(input, dst);
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += read(dsts[i]);
+        }
+        return total;
+    }
+
+    /**
+     * Takes only what fits in output slot; 0 when slot is full.
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (closing || outputShutdown) {
+            throw new ClosedChannelException();
+        }
+        int len = copy(src, output);
+        if (len > 0) {
+            engine.dirty(this);
+        }
+        return len;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += write(srcs[i]);
+            if (srcs[i].hasRemaining()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    private static int copy(ByteBuffer src, ByteBuffer dst) {
+        int len = Math.min(src.remaining(), dst.remaining());
+        dst.put(dst.position(), src, src.position(), len);
+        dst.position(dst.position() + len);
+        src.position(src.position() + len);
+        return len;
+    }
+
+    @Override
+    protected void implCloseSelectableChannel() throws IOException {
+        if (!engine.isInEngineThread()) {
+            engine.execute(() -> {
+                try {
+                    implCloseSelectableChannel();
+                } catch (IOException ignore) { }
+            });
+            return;
+        }
+        key.cancel();
+        closing = true;
+        if (isOutputDrained()) {
+            closeSocket();
+        }
+    }
+
+    /**
+     * Shutting socket down first makes outstanding receive complete so slot can be reused.
+     */
+    void closeSocket() {
+        if (!fdClosed) {
+            fdClosed = true;
+            LibC.shutdown(fd, LibC.SHUT_RDWR);
+            LibC.close(fd);
+            engine.closed(this);
+        }
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() throws IOException {
+        if (remoteAddress == null) {
+            if (fdClosed) {
+                throw new ClosedChannelException();
+            }
+            remoteAddress = LibC.getRemoteAddress(fd);
+        }
+        return remoteAddress;
+    }
+
+    @Override
+    public SocketAddress getLocalAddress() throws IOException {
+        if (fdClosed) {
+            throw new ClosedChannelException();
+        }
+        return LibC.getLocalAddress(fd);
+    }
+
+    @Override
+    public boolean isConnected() { return !fdClosed; }
+
+    @Override
+    public boolean isConnectionPending() { return false; }
+
+    /**
+     * Outstanding receive completes empty once input is shut down; whatever was received before
+     * that can still be read.
+     */
+    @Override
+    public SocketChannel shutdownInput() throws IOException {
+        if (fdClosed) {
+            throw new ClosedChannelException();
+        }
+        if (!inputShutdown) {
+            inputShutdown = true;
+            LibC.shutdown(fd, LibC.SHUT_RD);
+        }
+        return this;
+    }
+
+    /**
+     * Socket's output is shut down only after what is already in output slot is sent.
+     */
+    @Override
+    public SocketChannel shutdownOutput() throws IOException {
+        if (fdClosed) {
+            throw new ClosedChannelException();
+        }
+        if (!outputShutdown) {
+            outputShutdown = true;
+            if (isOutputDrained()) {
+                LibC.shutdown(fd, LibC.SHUT_WR);
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public SocketChannel bind(SocketAddress local) throws IOException { throw new AlreadyBoundException(); }
+
+    @Override
+    public boolean connect(SocketAddress remote) throws IOException { throw new AlreadyConnectedException(); }
+
+    @Override
+    public boolean finishConnect() throws IOException { return true; }
+
+    @Override
+    public Socket socket() {
+        if (socket == null) {
+            try {
+                socket = new RingSocket();
+            } catch (SocketException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return socket;
+    }
+
+    @Override
+    public <T> SocketChannel setOption(SocketOption<T> name, T value) throws IOException {
+        int[] option = nativeOption(name);
+        if (fdClosed) {
+            throw new ClosedChannelException();
+        }
+        int intValue = value instanceof Boolean ? ((Boolean)value ? 1 : 0) : (Integer)value;
+        LibC.setSocketOption(fd, option[0], option[1], intValue);
+        return this;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T getOption(SocketOption<T> name) throws IOException {
+        int[] option = nativeOption(name);
+        if (fdClosed) {
+            throw new ClosedChannelException();
+        }
+        int value = LibC.getSocketOption(fd, option[0], option[1]);
+        if (name.type() == Boolean.class) {
+            return (T)Boolean.valueOf(value != 0);
+        }
+        return (T)Integer.valueOf(value);
+    }
+
+    @Override
+    public Set<SocketOption<?>> supportedOptions() {
+        return Set.of(StandardSocketOptions.TCP_NODELAY, StandardSocketOptions.SO_KEEPALIVE,
+                StandardSocketOptions.SO_SNDBUF, StandardSocketOptions.SO_RCVBUF);
+    }
+
+    /**
+     * @return level and name of given option for setsockopt/getsockopt
+     */
+    private static int[] nativeOption(SocketOption<?> name) {
+        if (name == StandardSocketOptions.TCP_NODELAY) {
+            return new int[] { LibC.IPPROTO_TCP, LibC.TCP_NODELAY };
+        } else if (name == StandardSocketOptions.SO_KEEPALIVE) {
+            return new int[] { LibC.SOL_SOCKET, LibC.SO_KEEPALIVE };
+        } else if (name == StandardSocketOptions.SO_SNDBUF) {
+            return new int[] { LibC.SOL_SOCKET, LibC.SO_SNDBUF };
+        } else if (name == StandardSocketOptions.SO_RCVBUF) {
+            return new int[] { LibC.SOL_SOCKET, LibC.SO_RCVBUF };
+        }
+        throw new UnsupportedOperationException("'" + name + "' not supported");
+    }
+
+    @Override
+    protected void implConfigureBlocking(boolean block) throws IOException { }
+
+    @Override
+    public String toString() {
+        return "RingConnection[fd=" + fd + ",slot=" + slot + "]";
+    }
+
+    /**
+     * Socket view of the connection for code which needs one; like socket of any non-blocking
+     * channel it has no streams.
+     */
+    private class RingSocket extends Socket {
+
+        private int timeout = 0;
+
+        RingSocket() throws SocketException {
+            super((SocketImpl)null);
+        }
+
+        @Override
+        public SocketChannel getChannel() { return RingConnection.this; }
+
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) throws IOException { throw new SocketException("Already connected"); }
+
+        @Override
+        public void bind(SocketAddress bindpoint) throws IOException { throw new SocketException("Already bound"); }
+
+        @Override
+        public InetAddress getInetAddress() {
+            InetSocketAddress address = (InetSocketAddress)getRemoteSocketAddress();
+            return address != null ? address.getAddress() : null;
+        }
+
+        @Override
+        public int getPort() {
+            InetSocketAddress address = (InetSocketAddress)getRemoteSocketAddress();
+            return address != null ? address.getPort() : 0;
+        }
+
+        @Override
+        public SocketAddress getRemoteSocketAddress() {
+            try {
+                return RingConnection.this.getRemoteAddress();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public InetAddress getLocalAddress() {
+            InetSocketAddress address = (InetSocketAddress)getLocalSocketAddress();
+            return address != null ? address.getAddress() : null;
+        }
+
+        @Override
+        public int getLocalPort() {
+            InetSocketAddress address = (InetSocketAddress)getLocalSocketAddress();
+            return address != null ? address.getPort() : -1;
+        }
+
+        @Override
+        public SocketAddress getLocalSocketAddress() {
+            try {
+                return RingConnection.this.getLocalAddress();
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        public InputStream getInputStream() { throw new IllegalBlockingModeException(); }
+
+        @Override
+        public OutputStream getOutputStream() { throw new IllegalBlockingModeException(); }
+
+        @Override
+        public void setTcpNoDelay(boolean on) throws SocketException { set(StandardSocketOptions.TCP_NODELAY, on); }
+
+        @Override
+        public boolean getTcpNoDelay() throws SocketException { return get(StandardSocketOptions.TCP_NODELAY); }
+
+        @Override
+        public void setKeepAlive(boolean on) throws SocketException { set(StandardSocketOptions.SO_KEEPALIVE, on); }
+
+        @Override
+        public boolean getKeepAlive() throws SocketException { return get(StandardSocketOptions.SO_KEEPALIVE); }
+
+        @Override
+        public void setSendBufferSize(int size) throws SocketException { set(StandardSocketOptions.SO_SNDBUF, size); }
+
+        @Override
+        public int getSendBufferSize() throws SocketException { return get(StandardSocketOptions.SO_SNDBUF); }
+
+        @Override
+        public void setReceiveBufferSize(int size) throws SocketException { set(StandardSocketOptions.SO_RCVBUF, size); }
+
+        @Override
+        public int getReceiveBufferSize() throws SocketException { return get(StandardSocketOptions.SO_RCVBUF); }
+
+        /**
+         * Kept only to be returned - connection is never blocking.
+         */
+        @Override
+        public void setSoTimeout(int timeout) { this.timeout = timeout; }
+
+        @Override
+        public int getSoTimeout() { return timeout; }
+
+        @Override
+        public void shutdownInput() throws IOException { RingConnection.this.shutdownInput(); }
+
+        @Override
+        public void shutdownOutput() throws IOException { RingConnection.this.shutdownOutput(); }
+
+        @Override
+        public boolean isInputShutdown() { return inputShutdown; }
+
+        @Override
+        public boolean isOutputShutdown() { return outputShutdown; }
+
+        @Override
+        public boolean isConnected() { return RingConnection.this.isConnected(); }
+
+        @Override
+        public boolean isBound() { return true; }
+
+        @Override
+        public boolean isClosed() { return !isOpen(); }
+
+        @Override
+        public void close() throws IOException { RingConnection.this.close(); }
+
+        @Override
+        public String toString() { return "RingSocket[" + RingConnection.this + "]"; }
+
+        private <T> void set(SocketOption<T> name, T value) throws SocketException {
+            try {
+                setOption(name, value);
+            } catch (SocketException e) {
+                throw e;
+            } catch (IOException e) {
+                throw new SocketException(e.getMessage());
+            }
+        }
+
+        private <T> T get(SocketOption<T> name) throws SocketException {
+            try {
+                return getOption(name);
+            } catch (SocketException e) {
+                throw e;
+            } catch (IOException e) {
+                throw new SocketException(e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package org.ah.sigas.broker.uring;
+
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * Selection key handed to handlers when they are driven by io_uring completions. Interest ops tell
+ * the engine which operations to keep submitted for the connection.
+ */
+public class RingKey extends SelectionKey {
+
+    private RingConnection connection;
+    private int interestOps;
+    private boolean valid = true;
+
+    RingKey(RingConnection connection, int interestOps) {
+        this.connection = connection;
+        this.interestOps = interestOps;
+    }
+
+    @Override
+    public SelectableChannel channel() { return connection; }
+
+    @Override
+    public Selector selector() { return null; }
+
+    @Override
+    public boolean isValid() { return valid; }
+
+    @Override
+    public void cancel() {
+        valid = false;
+    }
+
+    @Override
+    public int interestOps() { return interestOps; }
+
+    @Override
+    public SelectionKey interestOps(int ops) {
+        interestOps = ops;
+        connection.interestChanged();
+        return this;
+    }
+
+    @Override
+    public int readyOps() { return interestOps; }
+}
@@ -0,0 +1,245 @@
+package org.ah.sigas.broker.vt;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketOption;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.spi.SelectorProvider;
+import java.util.Set;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Socket of a connection served by virtual threads as handlers see it - non-blocking, like channel
+ * registered with selector.
+ *
+ * Reads are served from what connection's reader has already received. Handler's writes are copied
+ * to output buffer, as much as fits, and sent by connection's writer thread outside of any game's
+ * lock. When buffer is full write takes nothing, like full socket would, and handler is to wait for
+ * OP_WRITE. Socket is closed only after everything written to it has been sent.
+ */
+public class StreamChannel extends SocketChannel {
+
+    public static final int OUTPUT_BUFFER_SIZE = 65536;
+
+    private SocketChannel socket;
+    private ByteBuffer input = ByteBuffer.allocate(16384);
+
+    private ReentrantLock outputLock = new ReentrantLock();
+    private ByteBuffer output = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+    private ByteBuffer sending = ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+
+    private volatile boolean closing = false;
+    private volatile boolean outputShutdown = false;
+    private volatile Thread writer;
+
+    StreamChannel(SocketChannel socket) {
+        super(SelectorProvider.provider());
+        this.socket = socket;
+        input.flip();
+        sending.flip();
+    }
+
+    void setWriter(Thread writer) { this.writer = writer; }
+
+    boolean hasInput() { return input.hasRemaining(); }
+    int available() { return input.remaining(); }
+
+    boolean isClosing() { return closing; }
+    boolean isOutputShutdown() { return outputShutdown; }
+
+    /**
+     * Blocks until more input arrives behind what handler has not consumed yet.
+     *
+     * @return number of bytes received; -1 at the end of stream
+     */
+    int receive() throws IOException {
+        input.compact();
+        try {
+            return socket.read(input);
+        } finally {
+            input.flip();
+        }
+    }
+
+    /**
+     * Once everything taken before is sent, swaps it with what handlers have written since.
+     *
+     * @return bytes to send; empty if there is nothing
+     */
+    ByteBuffer takeOutput() {
+        if (!sending.hasRemaining()) {
+            outputLock.lock();
+            try {
+                ByteBuffer written = output;
+                output = sending.clear();
+                sending = written.flip();
+            } finally {
+                outputLock.unlock();
+            }
+        }
+        return sending;
+    }
+
+    /**
+     * Writes bytes taken with {@link #takeOutput()} to the socket, blocking only the writer.
+     */
+    void send(ByteBuffer buffer) throws IOException {
+        socket.write(buffer);
+    }
+
+    void closeSocket() {
+        try {
+            socket.close();
+        } catch (IOException ignore) { }
+    }
+
+    void shutdownSocketOutput() throws IOException {
+        socket.shutdownOutput();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!input.hasRemaining()) {
+            return 0;
+        }
+        int len = Math.min(dst.remaining(), input.remaining());
+        dst.put(input.slice(input.position(), len));
+        input.position(input.position() + len);
+        return len;
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += read(dsts[i]);
+        }
+        return total;
+    }
+
+    /**
+     * Takes only what fits in output buffer; 0 when buffer is full.
+     */
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (closing || outputShutdown) {
+            throw new ClosedChannelException();
+        }
+        int len;
+        outputLock.lock();
+        try {
+            len = Math.min(src.remaining(), output.remaining());
+            output.put(output.position(), src, src.position(), len);
+            output.position(output.position() + len);
+            src.position(src.position() + len);
+        } finally {
+            outputLock.unlock();
+        }
+        if (len > 0) {
+            wakeWriter();
+        }
+        return len;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        long total = 0;
+        for (int i = offset; i < offset + length; i++) {
+            total += write(srcs[i]);
+            if (srcs[i].hasRemaining()) {
+                break;
+            }
+        }
+        return total;
+    }
+
+    private void wakeWriter() {
+        Thread writer = this.writer;
+        if (writer != null && writer != Thread.currentThread()) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Shutting socket's input down wakes up reader blocked on it; writer closes the socket once
+     * everything is sent.
+     */
+    @Override
+    protected void implCloseSelectableChannel() throws IOException {
+        closing = true;
+        try {
+            socket.shutdownInput();
+        } catch (IOException ignore) { }
+        wakeWriter();
+    }
+
+    @Override
+    public SocketAddress getRemoteAddress() throws IOException { return socket.getRemoteAddress(); }
+
+    @Override
+    public SocketAddress getLocalAddress() throws IOException { return socket.getLocalAddress(); }
+
+    @Override
+    public boolean isConnected() { return socket.isConnected(); }
+
+    @Override
+    public boolean isConnectionPending() { return false; }
+
+    @Override
+    public SocketChannel shutdownInput() throws IOException {
+        socket.shutdownInput();
+        return this;
+    }
+
+    /**
+     * Socket's output is shut down only after what is already in output buffer is sent.
+     */
+    @Override
+    public SocketChannel shutdownOutput() throws IOException {
+        if (closing) {
+            throw new ClosedChannelException();
+        }
+        outputShutdown = true;
+        wakeWriter();
+        return this;
+    }
+
+    @Override
+    public SocketChannel bind(SocketAddress local) throws IOException {
+        socket.bind(local);
+        return this;
+    }
+
+    @Override
+    public boolean connect(SocketAddress remote) throws IOException { return socket.connect(remote); }
+
+    @Override
+    public boolean finishConnect() throws IOException { return socket.finishConnect(); }
+
+    @Override
+    public Socket socket() { return socket.socket(); }
+
+    @Override
+    public <T> SocketChannel setOption(SocketOption<T> name, T value) throws IOException {
+        socket.setOption(name, value);
+        return this;
+    }
+
+    @Override
+    public <T> T getOption(SocketOption<T> name) throws IOException { return socket.getOption(name); }
+
+    @Override
+    public Set<SocketOption<?>> supportedOptions() { return socket.supportedOptions(); }
+
+    @Override
+    protected void implConfigureBlocking(boolean block) throws IOException { }
+
+    @Override
+    public String toString() {
+        return "StreamChannel[" + socket + "]";
+    }
+}
@@ -0,0 +1,154 @@
+package org.ah.sigas.broker.vt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.ah.sigas.broker.Broker;
+import org.ah.sigas.broker.HTTPRequestHandler;
+import org.ah.sigas.broker.Handler;
+
+/**
+ * One accepted connection served by its own pair of virtual threads - reader and writer.
+ *
+ * Reads block outside of any lock; received bytes are then handed to the connection's handler under
+ * lock of the game connection belongs to, so handlers see the same single threaded world as with selector.
+ * Handlers' writes only stage bytes in {@link StreamChannel}; writer sends them outside of any lock,
+ * so recipient which stops reading blocks nobody but its own writer.
+ */
+public class StreamConnection implements Runnable {
+
+    private VirtualThreadEngine engine;
+    private Broker broker;
+    private StreamChannel channel;
+    private StreamKey key;
+
+    public StreamConnection(VirtualThreadEngine engine, Broker broker, SocketChannel socket, Handler handler) {
+        this.engine = engine;
+        this.broker = broker;
+        this.channel = new StreamChannel(socket);
+        this.key = new StreamKey(channel, SelectionKey.OP_READ); // Expecting other side to send some data first
+        key.attach(handler);
+    }
+
+    public StreamKey getKey() { return key; }
+
+    public void start(String name) {
+        Thread.ofVirtual().name(name).start(this);
+        Thread.ofVirtual().name(name + "-writer").start(this::writeLoop);
+    }
+
+    @Override
+    public void run() {
+        key.setReader(Thread.currentThread());
+        try {
+            boolean consumed = true;
+            while (key.isValid() && !broker.isStopping()) {
+                if ((key.interestOps() & SelectionKey.OP_READ) != 0) {
+                    if (channel.hasInput()) {
+                        // Handler left input for later (read budget used up) - let others run first
+                        if (consumed) {
+                            Thread.yield();
+                        } else {
+                            Thread.sleep(1);
+                        }
+                    } else if (channel.receive() < 0) {
+                        close();
+                        return;
+                    }
+                    int available = channel.available();
+                    dispatch(true);
+                    consumed = channel.available() < available;
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+        } catch (ClosedChannelException ignore) {
+            // Channel closed by other side or other stream of the same client
+        } catch (Exception e) {
+            if (!channel.isClosing()) {
+                System.err.println("*** Closing channel: error while handling stream. Channel: " + channel + "; " + e.getClass().getCanonicalName() + "(" + (e.getMessage() != null ? e.getMessage() : "") + ")");
+                e.printStackTrace();
+            }
+            close();
+        }
+    }
+
+    /**
+     * Sends what handlers have written and, when handler waits for OP_WRITE, asks it for more once
+     * everything is sent. Socket is closed here, after the last of output is sent.
+     */
+    private void writeLoop() {
+        key.setWriter(Thread.currentThread());
+        channel.setWriter(Thread.currentThread());
+        boolean outputShutdown = false;
+        try {
+            while (!broker.isStopping()) {
+                boolean closing = channel.isClosing();
+                ByteBuffer output = channel.takeOutput();
+                if (output.hasRemaining()) {
+                    channel.send(output);
+                } else if (closing) {
+                    return;
+                } else if (channel.isOutputShutdown() && !outputShutdown) {
+                    channel.shutdownSocketOutput();
+                    outputShutdown = true;
+                } else if (key.isValid() && (key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+                    dispatch(false);
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+        } catch (IOException e) {
+            if (!channel.isClosing()) {
+                System.err.println("*** Closing channel: error while writing stream. Channel: " + channel + "; " + e.getClass().getCanonicalName() + "(" + (e.getMessage() != null ? e.getMessage() : "") + ")");
+            }
+            close();
+        } finally {
+            channel.closeSocket();
+            engine.removed(this);
+        }
+    }
+
+    private void dispatch(boolean read) throws IOException {
+        boolean resume = false;
+        do {
+            ReentrantLock lock = key.getLock();
+            lock.lock();
+            try {
+                Handler handler = (Handler)key.attachment();
+                if (handler == null) {
+                    throw new IOException("Handler is missing for the channel: " + Broker.logChannel(channel));
+                }
+                if (resume) {
+                    ((HTTPRequestHandler)handler).resume(key, channel);
+                } else if (read) {
+                    handler.read(key, channel);
+                } else {
+                    handler.write(key, channel);
+                }
+            } finally {
+                lock.unlock();
+            }
+            resume = key.takeRebound();
+        } while (resume && key.isValid());
+    }
+
+    void close() {
+        if (key.isValid()) {
+            ReentrantLock lock = key.getLock();
+            lock.lock();
+            try {
+                broker.closeChannel(key);
+            } catch (IOException e) {
+                System.err.println("*** Error during closing channel: " + channel + "; " + e.getMessage());
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.ah.sigas.broker.vt;
+
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Selection key handed to handlers when they are driven by virtual thread instead of selector.
+ * Interest ops tell connection's threads what handler wants to do next and changing them wakes those threads up.
+ */
+public class StreamKey extends SelectionKey {
+
+    private SocketChannel channel;
+    private volatile int interestOps;
+    private volatile boolean valid = true;
+    private volatile Thread reader;
+    private volatile Thread writer;
+
+    private volatile ReentrantLock lock = new ReentrantLock();
+    private volatile boolean rebound = false;
+
+    public StreamKey(SocketChannel channel, int interestOps) {
+        this.channel = channel;
+        this.interestOps = interestOps;
+    }
+
+    void setReader(Thread reader) { this.reader = reader; }
+    void setWriter(Thread writer) { this.writer = writer; }
+
+    ReentrantLock getLock() { return lock; }
+
+    /**
+     * Moves this connection under lock of a game. Handler is to be resumed after current call finishes.
+     */
+    void rebind(ReentrantLock lock) {
+        this.lock = lock;
+        rebound = true;
+    }
+
+    boolean takeRebound() {
+        if (rebound) {
+            rebound = false;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public SelectableChannel channel() { return channel; }
+
+    @Override
+    public Selector selector() { return null; }
+
+    @Override
+    public boolean isValid() { return valid; }
+
+    @Override
+    public void cancel() {
+        valid = false;
+        wakeup();
+    }
+
+    @Override
+    public int interestOps() { return interestOps; }
+
+    @Override
+    public SelectionKey interestOps(int ops) {
+        interestOps = ops;
+        wakeup();
+        return this;
+    }
+
+    @Override
+    public int readyOps() { return interestOps; }
+
+    private void wakeup() {
+        wakeup(reader);
+        wakeup(writer);
+    }
+
+    private static void wakeup(Thread thread) {
+        if (thread != null && thread != Thread.currentThread()) {
+            LockSupport.unpark(thread);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package org.ah.sigas.broker.vt;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.ah.sigas.broker.Broker;
+import org.ah.sigas.broker.Engine;
+import org.ah.sigas.broker.HTTPInternalRequestHandler;
+import org.ah.sigas.broker.HTTPRequestHandler;
+import org.ah.sigas.broker.HTTPServerRequestHandler;
+import org.ah.sigas.broker.Handler;
+import org.ah.sigas.broker.Reactor;
+import org.ah.sigas.broker.util.Clock;
+import org.ah.sigas.broker.util.TimerWheel;
+
+/**
+ * Engine running virtual threads per accepted connection - one blocking on reads and one on writes.
+ *
+ * Handlers and game model are the same as with NIO reactors. Instead of a game being pinned to
+ * a reactor thread, everything touching a game is done under that game's lock.
+ */
+public class VirtualThreadEngine implements Engine {
+
+    private static final int GAME_LOCK_STRIPES = 256;
+    private static final long CLOCK_RESOLUTION = 10;
+
+    private Broker broker;
+
+    private ServerSocketChannel serverChannel;
+    private ServerSocketChannel internalChannel;
+
+    private ReentrantLock[] gameLocks = new ReentrantLock[GAME_LOCK_STRIPES];
+
+    private Set<StreamConnection> connections = ConcurrentHashMap.newKeySet();
+
+    private TimerWheel timers = new TimerWheel(Reactor.TIMER_TICK, Reactor.TIMER_WHEEL_SIZE, Clock.now());
+    private Queue<Runnable> timerRequests = new ConcurrentLinkedQueue<>();
+
+    public VirtualThreadEngine(Broker broker) {
+        this.broker = broker;
+        for (int i = 0; i < gameLocks.length; i++) {
+            gameLocks[i] = new ReentrantLock();
+        }
+    }
+
+    private void init() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress((InetAddress)null, broker.getServerPort()));
+
+        internalChannel = ServerSocketChannel.open();
+        internalChannel.bind(new InetSocketAddress((InetAddress)null, broker.getInternalPort()));
+    }
+
+    @Override
+    public void loop() {
+        try {
+            init();
+        } catch (Exception e) {
+            System.err.println("Failed to start server; " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+
+        Thread internalAcceptor = Thread.ofVirtual().name("sigas-internal-acceptor").start(() -> acceptLoop(internalChannel, false));
+        Thread ticker = Thread.ofVirtual().name("sigas-ticker").start(this::tickerLoop);
+
+        acceptLoop(serverChannel, true);
+
+        try {
+            internalAcceptor.join();
+            ticker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (StreamConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+    private void acceptLoop(ServerSocketChannel channel, boolean server) {
+        while (!broker.isStopping()) {
+            try {
+                SocketChannel clientChannel = channel.accept();
+                if (Broker.DEBUG) { System.out.println("*** Accepting channel " + Broker.logChannel(clientChannel)); }
+
+                Handler handler = server ? new HTTPServerRequestHandler(broker) : new HTTPInternalRequestHandler(broker);
+                StreamConnection connection = new StreamConnection(this, broker, clientChannel, handler);
+                connections.add(connection);
+                connection.start("sigas-stream-" + clientChannel.socket().getPort());
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                System.err.println("Got exception accepting connection " + e.getMessage());
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Keeps cached clock up to date and drives timers. Timer wheel is touched by this thread only;
+     * timer callbacks themselves take game's lock through {@link #executeForGame(String, Runnable)}.
+     */
+    private void tickerLoop() {
+        while (!broker.isStopping()) {
+            try {
+                Thread.sleep(CLOCK_RESOLUTION);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = Clock.update();
+            Runnable request = timerRequests.poll();
+            while (request != null) {
+                request.run();
+                request = timerRequests.poll();
+            }
+            timers.advance(now);
+        }
+    }
+
+    void removed(StreamConnection connection) {
+        connections.remove(connection);
+    }
+
+    @Override
+    public void stop() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            if (internalChannel != null) {
+                internalChannel.close();
+            }
+        } catch (IOException ignore) { }
+    }
+
+    private ReentrantLock getLockFor(String gameId) {
+        return gameLocks[(gameId.hashCode() & 0x7fffffff) % gameLocks.length];
+    }
+
+    @Override
+    public void executeForGame(String gameId, Runnable command) {
+        ReentrantLock lock = getLockFor(gameId);
+        lock.lock();
+        try {
+            command.run();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes under game's lock only stage bytes for connection's writer so there is no iteration to defer to.
+     */
+    @Override
+    public void executeDeferredForGame(String gameId, Runnable command) {
+        executeForGame(gameId, command);
+    }
+
+    @Override
+    public void schedule(String gameId, TimerWheel.Timer timer, long deadline) {
+        timerRequests.add(() -> timers.schedule(timer, deadline));
+    }
+
+    @Override
+    public boolean bindToGame(SelectionKey key, String gameId, HTTPRequestHandler handler) {
+        StreamKey streamKey = (StreamKey)key;
+        ReentrantLock lock = getLockFor(gameId);
+        if (streamKey.getLock() == lock) {
+            return false;
+        }
+        streamKey.rebind(lock);
+        return true;
+    }
+}
@@ -0,0 +1,397 @@
+package org.ah.sigas.broker;
+
+import static org.ah.sigas.broker.game.GameFixtures.RESPONSE_HEADERS;
+import static org.ah.sigas.broker.game.GameFixtures.createBroker;
+import static org.ah.sigas.broker.game.GameFixtures.createClient;
+import static org.ah.sigas.broker.game.GameFixtures.createGame;
+import static org.ah.sigas.broker.game.GameFixtures.nextChunk;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.WritableByteChannel;
+
+import org.ah.sigas.broker.game.Client;
+import org.ah.sigas.broker.game.Game;
+import org.ah.sigas.broker.game.GameFixtures.TestKey;
+import org.ah.sigas.broker.message.Message;
+import org.ah.sigas.broker.message.SimpleBytesMessage;
+import org.ah.sigas.broker.util.XorDelta;
+import org.junit.Test;
+
+public class TestClientOutboundHandler {
+
+    /**
+     * Takes at most given number of bytes per write, like socket with almost full send buffer.
+     */
+    private static class SlowChannel implements WritableByteChannel {
+        protected ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private int maxPerWrite;
+
+        SlowChannel(int maxPerWrite) { this.maxPerWrite = maxPerWrite; }
+
+        @Override public int write(ByteBuffer src) {
+            int len = Math.min(maxPerWrite, src.remaining());
+            byte[] bytes = new byte[len];
+            src.get(bytes);
+            written.write(bytes, 0, len);
+            return len;
+        }
+
+        @Override public boolean isOpen() { return true; }
+        @Override public void close() { }
+    }
+
+    /**
+     * Takes everything and counts how many times it was asked to write.
+     */
+    private static class CountingChannel extends SlowChannel implements GatheringByteChannel {
+        private int writes = 0;
+
+        CountingChannel() { super(Integer.MAX_VALUE); }
+
+        @Override public long write(ByteBuffer[] srcs, int offset, int length) {
+            writes++;
+            long total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                total += super.write(srcs[i]);
+            }
+            return total;
+        }
+
+        @Override public long write(ByteBuffer[] srcs) { return write(srcs, 0, srcs.length); }
+    }
+
+    @Test public void writesQueuedMessagesInOneGatheringWrite() throws Exception {
+        Client client = createClient(createGame(null), "02");
+
+        ClientOutboundHandlerImpl handler = new ClientOutboundHandlerImpl(null, client);
+        TestKey key = new TestKey();
+        handler.open(key);
+
+        for (int i = 0; i < 10; i++) {
+            client.sendMessage(new SimpleBytesMessage("TEST", "  ", "02", ("m" + i).getBytes()));
+        }
+
+        CountingChannel channel = new CountingChannel();
+        handler.write(key, channel);
+        assertEquals(0, key.interestOps());
+        assertEquals(1, channel.writes);
+
+        String written = new String(channel.written.toByteArray());
+        assertTrue(written.endsWith("e\r\nTEST  02\0\0\0\2m8\r\ne\r\nTEST  02\0\0\0\2m9\r\n"));
+    }
+
+    @Test public void resumesPartialWritesWhereTheyStopped() throws Exception {
+        Client client = createClient(createGame(null), "02");
+
+        ClientOutboundHandlerImpl handler = new ClientOutboundHandlerImpl(null, client);
+        TestKey key = new TestKey();
+        handler.open(key);
+
+        client.sendMessage(new SimpleBytesMessage("TEST", "  ", "02", "first".getBytes()));
+        client.sendMessage(new SimpleBytesMessage("TEST", "  ", "02", "second".getBytes()));
+
+        SlowChannel channel = new SlowChannel(7);
+        handler.write(key, channel);
+        assertEquals(SelectionKey.OP_WRITE, key.interestOps());
+
+        while (key.interestOps() != 0) {
+            handler.write(key, channel);
+        }
+
+        String expected = RESPONSE_HEADERS
+                + "11\r\nTEST  02\0\0\0\5first\r\n"
+                + "12\r\nTEST  02\0\0\0\6second\r\n";
+        assertEquals(expected, new String(channel.written.toByteArray()));
+    }
+
+    @Test public void encodesBroadcastOnceForAllRecipients() throws Exception {
+        Game game = createGame(null);
+        Client master = createClient(game, "01");
+        Client first = createClient(game, "02");
+        Client second = createClient(game, "03");
+
+        SimpleBytesMessage message = new SimpleBytesMessage("TEST", "  ", "00", "all".getBytes());
+        game.receivedMessage(master, message);
+        assertEquals(2, message.getReferenceCount());
+
+        SlowChannel firstChannel = new SlowChannel(5);
+        ClientOutboundHandlerImpl firstHandler = new ClientOutboundHandlerImpl(null, first);
+        TestKey firstKey = new TestKey();
+        firstHandler.open(firstKey);
+        while (firstKey.interestOps() != 0) {
+            firstHandler.write(firstKey, firstChannel);
+        }
+        assertEquals(1, message.getReferenceCount());
+
+        CountingChannel secondChannel = new CountingChannel();
+        ClientOutboundHandlerImpl secondHandler = new ClientOutboundHandlerImpl(null, second);
+        TestKey secondKey = new TestKey();
+        secondHandler.open(secondKey);
+        secondHandler.write(secondKey, secondChannel);
+        assertEquals(0, message.getReferenceCount());
+
+        String expected = RESPONSE_HEADERS
+                + "f\r\nTEST  00\0\0\0\3all\r\n";
+        assertEquals(expected, new String(firstChannel.written.toByteArray()));
+        assertEquals(expected, new String(secondChannel.written.toByteArray()));
+    }
+
+    @Test public void interleavesFragmentsOfLargeMessagesWithSmallOnes() throws Exception {
+        Client client = createClient(createGame(null), "02");
+
+        ClientOutboundHandlerImpl handler = new ClientOutboundHandlerImpl(null, client);
+        handler.setFragmentSize(256);
+        TestKey key = new TestKey();
+        handler.open(key);
+
+        byte[] large = new byte[600];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte)i;
+        }
+        client.sendMessage(new SimpleBytesMessage("MAP ", "  ", "02", large));
+        client.sendMessage(new SimpleBytesMessage("POSN", "  ", "02", "small".getBytes()));
+
+        SlowChannel channel = new SlowChannel(Integer.MAX_VALUE);
+        handler.write(key, channel);
+        assertEquals(0, key.interestOps());
+
+        ByteBuffer output = ByteBuffer.wrap(channel.written.toByteArray());
+        output.position(RESPONSE_HEADERS.length());
+
+        ByteArrayOutputStream reassembled = new ByteArrayOutputStream();
+        StringBuilder order = new StringBuilder();
+        while (output.hasRemaining()) {
+            byte[] chunk = nextChunk(output);
+            String type = new String(chunk, 0, 4);
+            order.append(type.trim()).append(' ');
+            if ("FRAG".equals(type)) {
+                assertEquals(0, ByteBuffer.wrap(chunk, 12, 4).getInt());
+                assertTrue(chunk.length <= 12 + 4 + 256);
+                reassembled.write(chunk, 16, chunk.length - 16);
+            }
+        }
+
+        assertEquals("POSN FRAG FRAG FRAG ", order.toString());
+        ByteBuffer message = ByteBuffer.wrap(reassembled.toByteArray());
+        assertEquals("MAP   02", new String(message.array(), 0, 8));
+        assertEquals(600, message.getInt(8));
+        assertEquals(612, message.remaining());
+        assertEquals((byte)599, message.get(611));
+    }
+
+    @Test public void largeMessageIsPendingUntilItsLastFragmentIsWritten() throws Exception {
+        Client client = createClient(createGame(null), "02");
+
+        ClientOutboundHandlerImpl handler = new ClientOutboundHandlerImpl(null, client);
+        handler.setFragmentSize(256);
+        TestKey key = new TestKey();
+        handler.open(key);
+
+        Message message = new SimpleBytesMessage("MAP ", "  ", "02", new byte[600]);
+        client.sendMessage(message);
+        assertEquals(612, client.getPendingBytes());
+
+        SlowChannel channel = new SlowChannel(100);
+        handler.write(key, channel);
+        assertEquals(SelectionKey.OP_WRITE, key.interestOps());
+        assertEquals(612, client.getPendingBytes());
+
+        while (key.interestOps() != 0) {
+            handler.write(key, channel);
+            if (key.interestOps() != 0) {
+                assertEquals(612, client.getPendingBytes());
+            }
+        }
+        assertEquals(0, client.getPendingBytes());
+        assertEquals(0, message.getReferenceCount());
+    }
+
+    @Test public void deflatesMessagesWithGameDictionaryBothWays() throws Exception {
+        Game game = createGame(null, "deflate_dictionary", "{\"x\": , \"y\": , \"velocity\": }");
+        Client master = createClient(game, "01");
+        Client client = createClient(game, "02");
+
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            body.append("{\"x\": ").append(i).append(", \"y\": ").append(i * 2).append(", \"velocity\": 1}");
+        }
+        byte[] original = body.toString().getBytes();
+
+        ClientOutboundHandlerImpl handler = new ClientOutboundHandlerImpl(null, client);
+        handler.setDeflateThreshold(64);
+        TestKey key = new TestKey();
+        handler.open(key);
+        client.sendMessage(new SimpleBytesMessage("POSN", "  ", "01", original));
+
+        SlowChannel channel = new SlowChannel(Integer.MAX_VALUE);
+        handler.write(key, channel);
+
+        ByteBuffer output = ByteBuffer.wrap(channel.written.toByteArray());
+        output.position(RESPONSE_HEADERS.length());
+        byte[] chunk = nextChunk(output);
+
+        assertEquals("DFLT  01", new String(chunk, 0, 8));
+        assertEquals("POSN  01", new String(chunk, 12, 8));
+        assertTrue(chunk.length < original.length / 2);
+
+        // Client sending the same back gets it inflated and routed to master as original message
+        byte[] deflatedBody = new byte[chunk.length - 12];
+        System.arraycopy(chunk, 12, deflatedBody, 0, deflatedBody.length);
+        client.receivedMessage("DFLT", "  01", deflatedBody);
+
+        Message received = master.pollMessageToSend();
+        assertEquals("POSN", received.getType());
+        assertEquals("02", received.getClientId());
+        assertEquals(body.toString(), new String(received.getBody()));
+
+        // DFLT message must not inflate to more than any other message may have
+        ByteBuffer.wrap(deflatedBody).putInt(8, game.getGameOptions().getMaxMessageSize() + 1);
+        try {
+            client.receivedMessage("DFLT", "  01", deflatedBody);
+            fail("DFLT message longer than max_message_size accepted");
+        } catch (FrameDecoder.MessageRejectedException expected) { }
+    }
+
+    @Test public void sendsRepeatedStateAsDeltas() throws Exception {
+        Client client = createClient(createGame(null, "delta_types", "POSN"), "02");
+
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            body.append("{\"x\": ").append(i).append(", \"y\": ").append(i * 2).append("}");
+        }
+        byte[] first = body.toString().getBytes();
+        byte[] second = body.toString().replace("\"x\": 7", "\"x\": 8").getBytes();
+
+        ClientOutboundHandlerImpl handler = new ClientOutboundHandlerImpl(null, client);
+        handler.setDeltaEnabled(true);
+        TestKey key = new TestKey();
+        handler.open(key);
+        client.sendMessage(new SimpleBytesMessage("POSN", "  ", "01", first));
+        client.sendMessage(new SimpleBytesMessage("POSN", "  ", "01", second));
+
+        SlowChannel channel = new SlowChannel(Integer.MAX_VALUE);
+        handler.write(key, channel);
+
+        ByteBuffer output = ByteBuffer.wrap(channel.written.toByteArray());
+        output.position(RESPONSE_HEADERS.length());
+        byte[] keyframe = nextChunk(output);
+        byte[] delta = nextChunk(output);
+
+        assertEquals("DLTA  01", new String(keyframe, 0, 8));
+        assertEquals("POSN  01", new String(keyframe, 12, 8));
+        assertEquals(ClientOutboundHandlerImpl.DELTA_FULL, keyframe[24]);
+        assertEquals(body.toString(), new String(keyframe, 25, keyframe.length - 25));
+
+        assertEquals("DLTA  01", new String(delta, 0, 8));
+        assertEquals(ClientOutboundHandlerImpl.DELTA_XOR, delta[24]);
+        assertTrue(delta.length < 40);
+        int length = ByteBuffer.wrap(delta, 20, 4).getInt();
+        byte[] applied = XorDelta.apply(first, ByteBuffer.wrap(delta, 25, delta.length - 25), length);
+        assertEquals(new String(second), new String(applied));
+    }
+
+    private static ClientOutboundHandlerImpl openWithFragments(Broker broker, Client client, TestKey key) {
+        ClientOutboundHandlerImpl handler = new ClientOutboundHandlerImpl(broker, client);
+        handler.setFragmentSize(1024);
+        client.setOutboundHandler(handler);
+        handler.open(key);
+        return handler;
+    }
+
+    @Test public void passesLargeMessageOnInFragmentsWhileItIsBeingReceived() throws Exception {
+        Broker broker = createBroker(null);
+        Game game = createGame(broker);
+        Client master = createClient(game, "01");
+        Client client = createClient(game, "02");
+
+        TestKey key = new TestKey();
+        ClientOutboundHandlerImpl handler = openWithFragments(broker, master, key);
+        SlowChannel channel = new SlowChannel(Integer.MAX_VALUE);
+
+        byte[] body = new byte[5000];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte)('a' + i % 26);
+        }
+        assertTrue(client.receivedMessageStart(Message.intOf("LEVL"), Message.intOf("  01"), body.length));
+        client.receivedMessagePart(ByteBuffer.wrap(body, 0, 3000), false);
+        handler.write(key, channel);
+
+        // Other messages are not held back while the rest of the body is on its way
+        master.sendMessage(new SimpleBytesMessage("TEST", "  ", "01", "next".getBytes()));
+        handler.write(key, channel);
+        assertEquals(5012, master.getPendingBytes());
+
+        client.receivedMessagePart(ByteBuffer.wrap(body, 3000, 2000), true);
+        handler.write(key, channel);
+        assertEquals(0, key.interestOps());
+        assertEquals(0, master.getPendingBytes());
+
+        ByteBuffer output = ByteBuffer.wrap(channel.written.toByteArray());
+        output.position(RESPONSE_HEADERS.length());
+        ByteArrayOutputStream reassembled = new ByteArrayOutputStream();
+        StringBuilder order = new StringBuilder();
+        while (output.hasRemaining()) {
+            byte[] chunk = nextChunk(output);
+            order.append(new String(chunk, 0, 4).trim()).append(' ');
+            if ("FRAG".equals(new String(chunk, 0, 4))) {
+                assertTrue(chunk.length <= 12 + 4 + 1024);
+                reassembled.write(chunk, 16, chunk.length - 16);
+            }
+        }
+        assertTrue(order.toString(), order.toString().matches("(FRAG )+TEST (FRAG )+"));
+        byte[] message = reassembled.toByteArray();
+        assertEquals("LEVL  02", new String(message, 0, 8));
+        assertEquals(body.length, ByteBuffer.wrap(message).getInt(8));
+        assertEquals(new String(body), new String(message, 12, message.length - 12));
+    }
+
+    @Test public void abandonsStreamedMessageWhoseSenderWentAway() throws Exception {
+        Broker broker = createBroker(null);
+        Game game = createGame(broker);
+        Client master = createClient(game, "01");
+        Client client = createClient(game, "02");
+
+        TestKey key = new TestKey();
+        ClientOutboundHandlerImpl handler = openWithFragments(broker, master, key);
+        SlowChannel channel = new SlowChannel(Integer.MAX_VALUE);
+
+        assertTrue(client.receivedMessageStart(Message.intOf("LEVL"), Message.intOf("  01"), 5000));
+        client.receivedMessagePart(ByteBuffer.wrap(new byte[2000]), false);
+        handler.write(key, channel);
+        client.receivedMessageAborted();
+        handler.write(key, channel);
+
+        // Recipient is told to forget the message and its stream stays open
+        assertTrue(handler.isOpen());
+        assertEquals(0, master.getPendingBytes());
+        ByteBuffer output = ByteBuffer.wrap(channel.written.toByteArray());
+        output.position(RESPONSE_HEADERS.length());
+        byte[] last = null;
+        while (output.hasRemaining()) {
+            last = nextChunk(output);
+        }
+        assertEquals("FRAG", new String(last, 0, 4));
+        assertEquals(4, ByteBuffer.wrap(last).getInt(8));
+        assertEquals(16, last.length);
+    }
+
+    @Test public void receivesLargeMessageWholeWhenRecipientDoesNotTakeFragments() throws Exception {
+        Broker broker = createBroker(null);
+        Game game = createGame(broker);
+        Client master = createClient(game, "01");
+        Client client = createClient(game, "02");
+
+        ClientOutboundHandlerImpl handler = new ClientOutboundHandlerImpl(broker, master);
+        master.setOutboundHandler(handler);
+        handler.open(new TestKey());
+
+        assertFalse(client.receivedMessageStart(Message.intOf("LEVL"), Message.intOf("  01"), 5000));
+    }
+}
@@ -0,0 +1,122 @@
+package org.ah.sigas.broker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ah.sigas.broker.message.Message;
+import org.junit.Test;
+
+public class TestFrameDecoder {
+
+    private List<String> decoded = new ArrayList<>();
+    private List<ByteBuffer> bodies = new ArrayList<>();
+
+    private FrameDecoder decoder = new FrameDecoder((type, header, body) -> {
+        bodies.add(body);
+        byte[] bytes = new byte[body.remaining()];
+        body.duplicate().get(bytes);
+        decoded.add(Message.asciiOf(type) + Message.asciiOf(header) + new String(bytes));
+    }, 1024);
+
+    private static byte[] chunk(String type, String header, String body) {
+        ByteBuffer message = ByteBuffer.allocate(12 + body.length());
+        message.put(type.getBytes()).put(header.getBytes()).putInt(body.length()).put(body.getBytes());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(Integer.toHexString(message.capacity()).getBytes());
+        out.writeBytes("\r\n".getBytes());
+        out.writeBytes(message.array());
+        out.writeBytes("\r\n".getBytes());
+        return out.toByteArray();
+    }
+
+    private static String body(int length) {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            body.append((char)('a' + i % 26));
+        }
+        return body.toString();
+    }
+
+    @Test public void decodesBigEndianLengthsAndSlicesReadBuffer() throws Exception {
+        String body = body(300);
+        ByteBuffer in = ByteBuffer.wrap(chunk("POSN", "  01", body));
+
+        assertEquals(FrameDecoder.Result.MORE, decoder.decode(in));
+
+        assertEquals(1, decoded.size());
+        assertEquals("POSN  01" + body, decoded.get(0));
+        assertSame(in.array(), bodies.get(0).array());
+        assertEquals(0, in.remaining());
+    }
+
+    @Test public void decodesMessagesSplitAtAnyPoint() throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        stream.writeBytes(chunk("POSN", "  01", body(300)));
+        stream.writeBytes(chunk("HRTB", "  01", ""));
+        stream.writeBytes(chunk("CHAT", "  02", "hello"));
+        stream.writeBytes("0\r\n".getBytes());
+        byte[] bytes = stream.toByteArray();
+
+        for (int split = 0; split < bytes.length; split++) {
+            decoded.clear();
+            decoder.reset();
+
+            assertEquals(FrameDecoder.Result.MORE, decoder.decode(ByteBuffer.wrap(bytes, 0, split)));
+            assertEquals(FrameDecoder.Result.END, decoder.decode(ByteBuffer.wrap(bytes, split, bytes.length - split)));
+
+            assertEquals(3, decoded.size());
+            assertEquals("POSN  01" + body(300), decoded.get(0));
+            assertEquals("HRTB  01", decoded.get(1));
+            assertEquals("CHAT  02hello", decoded.get(2));
+        }
+    }
+
+    @Test public void rejectsMessagesLongerThanMaximum() throws Exception {
+        assertEquals(FrameDecoder.Result.ERROR, decoder.decode(ByteBuffer.wrap(chunk("POSN", "  01", body(1025)))));
+        assertEquals(0, decoded.size());
+    }
+
+    @Test public void stopsWhenListenerRejectsMessage() throws Exception {
+        FrameDecoder decoder = new FrameDecoder((type, header, body) -> {
+            throw new FrameDecoder.MessageRejectedException("Rejected " + Message.asciiOf(type));
+        }, 1024);
+
+        assertEquals(FrameDecoder.Result.ERROR, decoder.decode(ByteBuffer.wrap(chunk("DFLT", "  01", body(20)))));
+        assertEquals("Rejected DFLT", decoder.getError());
+    }
+
+    @Test public void streamsLongMessagesNotCompleteInReadBuffer() throws Exception {
+        StringBuilder streamed = new StringBuilder();
+        FrameDecoder decoder = new FrameDecoder(new FrameDecoder.Listener() {
+            @Override public void message(int type, int header, ByteBuffer body) {
+                decoded.add(Message.asciiOf(type));
+            }
+
+            @Override public boolean messageStarted(int type, int header, int length) {
+                streamed.append(Message.asciiOf(type)).append(Message.asciiOf(header)).append(length).append(':');
+                return true;
+            }
+
+            @Override public void messagePart(ByteBuffer part, boolean last) {
+                byte[] bytes = new byte[part.remaining()];
+                part.get(bytes);
+                streamed.append(bytes.length).append(last ? "." : ",");
+            }
+        }, 1024);
+        decoder.setStreamThreshold(100);
+
+        byte[] bytes = chunk("LEVL", "  01", body(300));
+        assertEquals(FrameDecoder.Result.MORE, decoder.decode(ByteBuffer.wrap(bytes, 0, 100)));
+        assertEquals(FrameDecoder.Result.MORE, decoder.decode(ByteBuffer.wrap(bytes, 100, bytes.length - 100)));
+
+        // 5 bytes of chunk size and 12 of header leave 83 bytes of body in the first read
+        assertEquals("LEVL  01300:83,217.", streamed.toString());
+        assertEquals(0, decoded.size());
+    }
+}
@@ -0,0 +1,84 @@
+package org.ah.sigas.broker.game;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.ah.sigas.broker.Broker;
+import org.ah.sigas.broker.util.TimerWheel;
+
+/**
+ * Games, clients and bits of broker for tests which drive them directly, without any sockets.
+ */
+public class GameFixtures {
+
+    public static final String RESPONSE_HEADERS = "HTTP/1.1 200 OK\r\nTransfer-Encoding: chunked\r\n\r\n";
+
+    /**
+     * Key of a channel which is always valid and ready for whatever it is interested in.
+     */
+    public static class TestKey extends SelectionKey {
+        private int interestOps;
+
+        @Override public SelectableChannel channel() { return null; }
+        @Override public Selector selector() { return null; }
+        @Override public boolean isValid() { return true; }
+        @Override public void cancel() { }
+        @Override public int interestOps() { return interestOps; }
+        @Override public SelectionKey interestOps(int ops) { interestOps = ops; return this; }
+        @Override public int readyOps() { return interestOps; }
+    }
+
+    /**
+     * Creates game with given options - name, value pairs. Heartbeats are off unless set.
+     */
+    public static Game createGame(Broker broker, Object... options) {
+        Map<String, Object> json = new HashMap<>();
+        json.put("heartbeat_period", 0);
+        for (int i = 0; i < options.length; i += 2) {
+            json.put((String)options[i], options[i + 1]);
+        }
+        GameOptions gameOptions = new GameOptions();
+        gameOptions.fromJSON(json);
+        return new Game(broker, "game", gameOptions);
+    }
+
+    /**
+     * Creates client with given id and adds it to the game; client "01" is the master.
+     */
+    public static Client createClient(Game game, String clientId) {
+        boolean master = "01".equals(clientId);
+        Client client = new Client(game, "token" + clientId, clientId, master ? "master" : "alias" + clientId, master);
+        game.addClient(client);
+        return client;
+    }
+
+    /**
+     * Broker which runs everything for games straight away on the calling thread and schedules
+     * timers on given wheel. Deferred writes are not run at all - tests write out by themselves.
+     */
+    public static Broker createBroker(TimerWheel timers) {
+        return new Broker(0, 0, null) {
+            @Override public void executeForGame(String gameId, Runnable command) { command.run(); }
+            @Override public void executeDeferredForGame(String gameId, Runnable command) { }
+            @Override public void schedule(String gameId, TimerWheel.Timer timer, long deadline) { timers.schedule(timer, deadline); }
+        };
+    }
+
+    /**
+     * @return body of next HTTP chunk in written output
+     */
+    public static byte[] nextChunk(ByteBuffer output) {
+        int start = output.position();
+        while (output.get() != '\r') { }
+        int size = Integer.parseInt(new String(output.array(), start, output.position() - start - 1).trim(), 16);
+        output.get();
+        byte[] chunk = new byte[size];
+        output.get(chunk);
+        output.position(output.position() + 2);
+        return chunk;
+    }
+}
@@ -0,0 +1,125 @@
+package org.ah.sigas.broker.game;
+
+import static org.ah.sigas.broker.game.GameFixtures.createBroker;
+import static org.ah.sigas.broker.game.GameFixtures.createGame;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ah.sigas.broker.Broker;
+import org.ah.sigas.broker.message.HeartBeatMessage;
+import org.ah.sigas.broker.message.Message;
+import org.ah.sigas.broker.message.Messages;
+import org.ah.sigas.broker.message.SimpleBytesMessage;
+import org.ah.sigas.broker.util.Clock;
+import org.ah.sigas.broker.util.TimerWheel;
+import org.junit.Test;
+
+public class TestClientOutboundQueue {
+
+    private static Client createClient(String policy, int maxMessages, int ttl) {
+        Game game = createGame(createBroker(new TimerWheel(10, 64, Clock.now())), "outbound_policy", policy, "outbound_max_messages", maxMessages, "message_ttl", ttl);
+        return GameFixtures.createClient(game, "02");
+    }
+
+    private static Message message(String body) {
+        return new SimpleBytesMessage("TEST", "  ", "02", body.getBytes());
+    }
+
+    @Test public void dropsNewestMessagesAtTheLimit() throws Exception {
+        Client client = createClient("drop_newest", 2, 0);
+        client.sendMessage(message("1"));
+        client.sendMessage(message("2"));
+        Message third = message("3");
+        client.sendMessage(third);
+
+        assertEquals(2, client.getMessagesToSend().size());
+        assertEquals("1", new String(client.getMessagesToSend().peek().getBody()));
+        assertEquals(1, client.getDroppedMessages());
+        assertEquals(13, client.getDroppedBytes());
+        assertEquals(0, third.getReferenceCount());
+    }
+
+    @Test public void dropsOldestMessagesAtTheLimit() throws Exception {
+        Client client = createClient("drop_oldest", 2, 0);
+        Message first = message("1");
+        client.sendMessage(first);
+        client.sendMessage(message("2"));
+        client.sendMessage(message("3"));
+
+        assertEquals(2, client.getMessagesToSend().size());
+        assertEquals("2", new String(client.getMessagesToSend().peek().getBody()));
+        assertEquals(1, client.getDroppedMessages());
+        assertEquals(0, first.getReferenceCount());
+        assertEquals(26, client.getPendingBytes());
+    }
+
+    @Test public void expiresMessagesOlderThanTTL() throws Exception {
+        Client client = createClient("expire", 2, 1);
+        client.sendMessage(message("1"));
+        client.sendMessage(message("2"));
+
+        Thread.sleep(5);
+        Clock.update();
+        client.sendMessage(message("3"));
+
+        assertEquals(1, client.getMessagesToSend().size());
+        assertEquals(2, client.getExpiredMessages());
+        assertEquals(2, client.getDroppedMessages());
+    }
+
+    @Test public void replacesQueuedMessageWithLatestOfSameKey() throws Exception {
+        Client client = GameFixtures.createClient(createGame(createBroker(new TimerWheel(10, 64, Clock.now())), "coalesce_types", "POSN"), "02");
+
+        Message stale = new SimpleBytesMessage("POSN", "  ", "01", "1".getBytes());
+        client.sendMessage(stale);
+        client.sendMessage(message("other"));
+        client.sendMessage(new SimpleBytesMessage("POSN", "  ", "01", "2".getBytes()));
+        client.sendMessage(new SimpleBytesMessage("POSN", "  ", "03", "3".getBytes()));
+
+        assertEquals(3, client.getMessagesToSend().size());
+        assertEquals(1, client.getCoalescedMessages());
+        assertEquals(0, stale.getReferenceCount());
+        assertEquals("2", new String(client.pollMessageToSend().getBody()));
+        assertEquals("other", new String(client.pollMessageToSend().getBody()));
+        assertEquals("3", new String(client.pollMessageToSend().getBody()));
+
+        // Once sent out, next one is queued again
+        client.sendMessage(new SimpleBytesMessage("POSN", "  ", "01", "4".getBytes()));
+        assertEquals(1, client.getMessagesToSend().size());
+    }
+
+    @Test public void controlMessagesOvertakeGameData() throws Exception {
+        Messages.registerAll();
+        Client client = createClient("drop_newest", 1, 0);
+        client.sendMessage(message("data"));
+        client.sendMessage(new HeartBeatMessage(1, "  ", "02"));
+
+        assertEquals("HRTB", client.pollMessageToSend().getType());
+        assertEquals("TEST", client.pollMessageToSend().getType());
+        assertEquals(null, client.pollMessageToSend());
+        assertEquals(0, client.getDroppedMessages());
+    }
+
+    @Test public void coalescesOnlyOnGamesThread() throws Exception {
+        List<Runnable> commands = new ArrayList<>();
+        Broker broker = new Broker(0, 0, null) {
+            @Override public void executeForGame(String gameId, Runnable command) { commands.add(command); }
+        };
+        Client client = GameFixtures.createClient(createGame(broker, "coalesce_types", "POSN"), "02");
+
+        Message message = new SimpleBytesMessage("POSN", "  ", "01", "1".getBytes());
+        client.sendMessage(message);
+        client.sendMessage(message("other"));
+
+        // Plain message goes to the queue straight away, coalesced one waits for game's thread
+        assertEquals(1, client.getMessagesToSend().size());
+        assertEquals(1, commands.size());
+        assertEquals(1, message.getReferenceCount());
+
+        commands.get(0).run();
+        assertEquals(2, client.getMessagesToSend().size());
+        assertEquals(1, message.getReferenceCount());
+    }
+}
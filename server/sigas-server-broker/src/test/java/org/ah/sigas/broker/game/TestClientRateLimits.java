@@ -0,0 +1,110 @@
+package org.ah.sigas.broker.game;
+
+import static org.ah.sigas.broker.game.GameFixtures.createBroker;
+import static org.ah.sigas.broker.game.GameFixtures.createClient;
+import static org.ah.sigas.broker.game.GameFixtures.createGame;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+import org.ah.sigas.broker.util.Clock;
+import org.ah.sigas.broker.util.TimerWheel;
+import org.junit.Test;
+
+public class TestClientRateLimits {
+
+    @Test public void dropsAndCountsMessagesOverClientLimit() throws Exception {
+        Game game = createGame(null, "client_max_messages_per_second", 2, "rate_limit_policy", "drop");
+        Client master = createClient(game, "01");
+        Client client = createClient(game, "02");
+
+        for (int i = 0; i < 3; i++) {
+            client.receivedMessage("POSN", "  01", new byte[] {(byte)i});
+        }
+
+        assertEquals(0, master.pollMessageToSend().getBody()[0]);
+        assertEquals(1, master.pollMessageToSend().getBody()[0]);
+        assertNull(master.pollMessageToSend());
+        assertEquals(1, client.getRateLimitedMessages());
+        assertEquals(13, client.getRateLimitedBytes());
+    }
+
+    @Test public void dropsMessageBiggerThanLimitOnlyWhenLimitIsUsed() throws Exception {
+        Game game = createGame(null, "client_max_bytes_per_second", 100, "rate_limit_policy", "drop");
+        Client master = createClient(game, "01");
+        Client client = createClient(game, "02");
+
+        client.receivedMessage("LEVL", "  01", new byte[200]);
+        client.receivedMessage("LEVL", "  01", new byte[200]);
+
+        assertEquals(200, master.pollMessageToSend().getBody().length);
+        assertNull(master.pollMessageToSend());
+        assertEquals(1, client.getRateLimitedMessages());
+    }
+
+    @Test public void chargesDeflatedMessageAsInflated() throws Exception {
+        Game game = createGame(null, "client_max_bytes_per_second", 1000, "rate_limit_policy", "drop");
+        Client master = createClient(game, "01");
+        Client client = createClient(game, "02");
+
+        byte[] deflated = deflate("LEVL", "  01", new byte[4000]);
+        assertTrue(deflated.length < 100);
+
+        client.receivedMessage("DFLT", "  01", deflated);
+        client.receivedMessage("DFLT", "  01", deflated);
+
+        assertEquals(4000, master.pollMessageToSend().getBody().length);
+        assertNull(master.pollMessageToSend());
+        assertEquals(1, client.getRateLimitedMessages());
+        assertEquals(4012, client.getRateLimitedBytes());
+    }
+
+    @Test public void pausesReadingUntilLimitIsRepaid() throws Exception {
+        TimerWheel timers = new TimerWheel(10, 64, Clock.update());
+        Game game = createGame(createBroker(timers), "client_max_messages_per_second", 10);
+        Client master = createClient(game, "01");
+        Client client = createClient(game, "02");
+
+        // Message over the limit is still let through, but nothing more is read until the limit is repaid
+        for (int i = 0; i < 11; i++) {
+            client.receivedMessage("POSN", "  01", new byte[] {(byte)i});
+        }
+        for (int i = 0; i < 11; i++) {
+            assertEquals(i, master.pollMessageToSend().getBody()[0]);
+        }
+        assertTrue(client.isReadingPaused());
+        assertEquals(1, client.getRateLimitDelays());
+        assertEquals(0, client.getRateLimitedMessages());
+        assertEquals(1, timers.size());
+
+        // Timer firing before the debt is repaid (clock has not moved) waits some more
+        timers.advance(Clock.now() + 100);
+        assertTrue(client.isReadingPaused());
+        assertEquals(1, timers.size());
+
+        Thread.sleep(150);
+        timers.advance(Clock.update());
+        assertFalse(client.isReadingPaused());
+        assertTrue(timers.isEmpty());
+    }
+
+    private static byte[] deflate(String type, String header, byte[] body) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        deflater.setInput(body);
+        deflater.finish();
+        byte[] compressed = new byte[body.length + 64];
+        int len = deflater.deflate(compressed);
+        deflater.end();
+
+        ByteBuffer result = ByteBuffer.allocate(12 + len);
+        result.put(type.getBytes());
+        result.put(header.getBytes());
+        result.putInt(body.length);
+        result.put(compressed, 0, len);
+        return result.array();
+    }
+}
@@ -0,0 +1,91 @@
+package org.ah.sigas.broker.game;
+
+import static org.ah.sigas.broker.game.GameFixtures.createBroker;
+import static org.ah.sigas.broker.game.GameFixtures.createClient;
+import static org.ah.sigas.broker.game.GameFixtures.createGame;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.ah.sigas.broker.ClientOutboundHandlerImpl;
+import org.ah.sigas.broker.game.GameFixtures.TestKey;
+import org.ah.sigas.broker.message.SimpleBytesMessage;
+import org.junit.Test;
+
+public class TestGameCongestion {
+
+    private static final int QUARTER = (int)Client.OUTBOUND_LOW_WATER_MARK;
+
+    private static Client connect(Game game, String clientId) {
+        Client client = createClient(game, clientId);
+        ClientOutboundHandlerImpl handler = new ClientOutboundHandlerImpl(game.getBroker(), client);
+        client.setOutboundHandler(handler);
+        handler.open(new TestKey());
+        return client;
+    }
+
+    /**
+     * Queues messages of a quarter of high water mark each.
+     */
+    private static void queue(Client client, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            client.sendMessage(new SimpleBytesMessage("LEVL", "  ", "01", new byte[QUARTER - 12]));
+        }
+    }
+
+    private static void send(Client client, int count) {
+        for (int i = 0; i < count; i++) {
+            client.messageSent(client.pollMessageToSend());
+        }
+    }
+
+    @Test public void congestedMasterPausesOthersBetweenWaterMarks() throws Exception {
+        Game game = createGame(createBroker(null));
+        Client master = connect(game, "01");
+        Client first = connect(game, "02");
+
+        queue(master, 4);
+        assertFalse(master.isCongested());
+        queue(master, 1);
+        assertTrue(master.isCongested());
+        assertTrue(first.isReadingPaused());
+        assertFalse(master.isReadingPaused());
+
+        // Client joining while master is congested is paused straight away
+        Client second = connect(game, "03");
+        assertTrue(second.isReadingPaused());
+
+        // Still congested until drained below low water mark
+        send(master, 3);
+        assertEquals(2 * QUARTER, master.getPendingBytes());
+        assertTrue(master.isCongested());
+        assertTrue(first.isReadingPaused());
+
+        send(master, 2);
+        assertFalse(master.isCongested());
+        assertFalse(first.isReadingPaused());
+        assertFalse(second.isReadingPaused());
+    }
+
+    @Test public void masterIsPausedWhileAnyClientIsCongested() throws Exception {
+        Game game = createGame(createBroker(null));
+        Client master = connect(game, "01");
+        Client first = connect(game, "02");
+        Client second = connect(game, "03");
+
+        queue(first, 5);
+        queue(second, 5);
+        assertTrue(first.isCongested());
+        assertTrue(second.isCongested());
+        assertTrue(master.isReadingPaused());
+
+        send(first, 5);
+        assertFalse(first.isCongested());
+        assertTrue(master.isReadingPaused());
+
+        // Closed stream does not hold anybody back
+        second.getOutboundHandler().close();
+        assertFalse(second.isCongested());
+        assertFalse(master.isReadingPaused());
+    }
+}
@@ -0,0 +1,43 @@
+package org.ah.sigas.broker.game;
+
+import static org.ah.sigas.broker.game.GameFixtures.createGame;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.ah.sigas.broker.Reactor;
+import org.junit.Test;
+
+public class TestGameReadBudget {
+
+    @Test public void budgetIsToppedUpEveryRoundByWeight() {
+        Game light = createGame(null, "read_weight", 1);
+        Game heavy = createGame(null, "read_weight", 3);
+
+        assertTrue(light.hasReadBudget(1));
+        assertTrue(heavy.hasReadBudget(1));
+        light.consumeReadBudget(Game.READ_QUANTUM);
+        heavy.consumeReadBudget(Game.READ_QUANTUM);
+
+        assertFalse(light.hasReadBudget(1));
+        assertTrue(heavy.hasReadBudget(1));
+
+        assertTrue(light.hasReadBudget(2));
+    }
+
+    @Test public void overspendingIsCarriedOverToNextRound() {
+        Game game = createGame(null, "read_weight", 1);
+
+        assertTrue(game.hasReadBudget(1));
+        game.consumeReadBudget(Game.READ_QUANTUM * 2);
+
+        // Deficit of one quantum eats all of the next round's budget
+        assertFalse(game.hasReadBudget(2));
+        assertTrue(game.hasReadBudget(3));
+    }
+
+    @Test public void roundsOutsideReactorsDoNotWaitForClock() throws Exception {
+        long round = Reactor.currentRound();
+        Thread.sleep(2);
+        assertTrue(Reactor.currentRound() > round);
+    }
+}
@@ -0,0 +1,53 @@
+package org.ah.sigas.broker.message;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class TestMessage {
+
+    @Test public void createsRegisteredTypesWithFactoriesAndOthersAsBytes() {
+        Messages.registerAll();
+
+        Message heartBeat = Message.createMessage(Message.intOf("HRTB"), Message.intOf("  02"), new byte[] {5, 1});
+        assertTrue(heartBeat instanceof HeartBeatMessage);
+        assertEquals(261, ((HeartBeatMessage)heartBeat).getSequence());
+
+        Message other = Message.createMessage(Message.intOf("POSN"), Message.intOf("AB03"), new byte[] {1});
+        assertTrue(other instanceof SimpleBytesMessage);
+        assertEquals("POSN", other.getType());
+        assertEquals("AB", other.getFlags());
+        assertEquals("03", other.getClientId());
+        assertSame(other.getType(), Message.createMessage("POSN", "  01", new byte[0]).getType());
+    }
+
+    @Test public void encodesPackedHeader() {
+        Message message = new SimpleBytesMessage("POSN", "AB", "03", new byte[] {1, 2});
+        ByteBuffer frame = message.retain();
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        message.release();
+
+        assertEquals("e\r\nPOSNAB03\0\0\0\2\1\2\r\n", new String(bytes));
+    }
+
+    @Test public void encodesRelayedMessageStraightFromReadBuffer() {
+        ByteBuffer read = ByteBuffer.wrap("xxhelloxx".getBytes());
+        read.position(2).limit(7);
+
+        RelayedMessage message = new RelayedMessage(Message.intOf("POSN"), Message.intOf("  03"), read.slice());
+        read.put(2, (byte)'j');
+        assertEquals(5, message.getBodyLength());
+
+        ByteBuffer frame = message.retain();
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        assertEquals("11\r\nPOSN  03\0\0\0\5hello\r\n", new String(bytes));
+        assertEquals("hello", new String(message.getBody()));
+        message.release();
+    }
+}
@@ -0,0 +1,78 @@
+package org.ah.sigas.broker.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestMpscRingQueue {
+
+    @Test public void offerAndPollInOrder() {
+        MpscRingQueue<String> queue = new MpscRingQueue<>(3);
+
+        assertEquals(4, queue.capacity());
+        assertNull(queue.poll());
+
+        assertEquals(MpscRingQueue.OFFERED_TO_EMPTY, queue.offer("a"));
+        assertEquals(MpscRingQueue.OFFERED, queue.offer("b"));
+        assertEquals(MpscRingQueue.OFFERED, queue.offer("c"));
+        assertEquals(MpscRingQueue.OFFERED, queue.offer("d"));
+        assertEquals(MpscRingQueue.FULL, queue.offer("e"));
+        assertEquals(4, queue.size());
+
+        assertEquals("a", queue.peek());
+        assertEquals("a", queue.poll());
+        assertEquals(MpscRingQueue.OFFERED, queue.offer("e"));
+        assertEquals("b", queue.poll());
+        assertEquals("c", queue.poll());
+        assertEquals("d", queue.poll());
+        assertEquals("e", queue.poll());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+
+        assertEquals(MpscRingQueue.OFFERED_TO_EMPTY, queue.offer("f"));
+    }
+
+    @Test public void multipleProducers() throws InterruptedException {
+        int producers = 4;
+        int perProducer = 100000;
+        MpscRingQueue<int[]> queue = new MpscRingQueue<>(64);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    int[] element = new int[] {producer, i};
+                    while (queue.offer(element) == MpscRingQueue.FULL) {
+                        Thread.yield();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        int[] next = new int[producers];
+        int received = 0;
+        while (received < producers * perProducer) {
+            int[] element = queue.poll();
+            if (element != null) {
+                // Order per producer must be preserved
+                assertEquals(next[element[0]], element[1]);
+                next[element[0]]++;
+                received++;
+            } else {
+                Thread.yield();
+            }
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(queue.isEmpty());
+    }
+}
@@ -0,0 +1,126 @@
+package org.ah.sigas.broker.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TestTimerWheel {
+
+    private static class RecordingTimer extends TimerWheel.Timer {
+        private String name;
+        private List<String> fired;
+
+        RecordingTimer(String name, List<String> fired) {
+            this.name = name;
+            this.fired = fired;
+        }
+
+        @Override protected void expired(long now) {
+            fired.add(name + "@" + now);
+        }
+    }
+
+    @Test public void firesTimersInTickOrderAndNeverEarly() {
+        List<String> fired = new ArrayList<>();
+        TimerWheel wheel = new TimerWheel(10, 8, 1000);
+
+        wheel.schedule(new RecordingTimer("a", fired), 1025);
+        wheel.schedule(new RecordingTimer("b", fired), 1010);
+        // More than one round of the wheel away
+        wheel.schedule(new RecordingTimer("c", fired), 1250);
+        assertEquals(3, wheel.size());
+
+        wheel.advance(1009);
+        assertEquals(List.of(), fired);
+
+        wheel.advance(1010);
+        assertEquals(List.of("b@1010"), fired);
+
+        wheel.advance(1029);
+        assertEquals(List.of("b@1010"), fired);
+
+        wheel.advance(1030);
+        assertEquals(List.of("b@1010", "a@1030"), fired);
+
+        wheel.advance(1249);
+        assertEquals(2, fired.size());
+
+        wheel.advance(1300);
+        assertEquals(List.of("b@1010", "a@1030", "c@1300"), fired);
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test public void cancelAndReschedule() {
+        List<String> fired = new ArrayList<>();
+        TimerWheel wheel = new TimerWheel(10, 8, 0);
+
+        RecordingTimer a = new RecordingTimer("a", fired);
+        RecordingTimer b = new RecordingTimer("b", fired);
+        wheel.schedule(a, 20);
+        wheel.schedule(b, 20);
+
+        wheel.cancel(a);
+        assertFalse(a.isScheduled());
+        assertEquals(1, wheel.size());
+
+        wheel.schedule(b, 50);
+        assertEquals(1, wheel.size());
+
+        wheel.advance(40);
+        assertEquals(List.of(), fired);
+
+        wheel.advance(50);
+        assertEquals(List.of("b@50"), fired);
+    }
+
+    @Test public void timerCanRescheduleItselfWhenFired() {
+        List<Long> fired = new ArrayList<>();
+        TimerWheel wheel = new TimerWheel(10, 4, 0);
+
+        TimerWheel.Timer timer = new TimerWheel.Timer() {
+            @Override protected void expired(long now) {
+                fired.add(now);
+                if (fired.size() < 3) {
+                    wheel.schedule(this, now + 10);
+                }
+            }
+        };
+        wheel.schedule(timer, 10);
+
+        for (long now = 0; now <= 100; now += 5) {
+            wheel.advance(now);
+        }
+        assertEquals(List.of(10L, 20L, 30L), fired);
+    }
+
+    @Test public void tellsHowLongUntilNextTimerIsDue() {
+        List<String> fired = new ArrayList<>();
+        TimerWheel wheel = new TimerWheel(10, 8, 0);
+        assertEquals(-1, wheel.millisToNextExpiry(0));
+
+        RecordingTimer a = new RecordingTimer("a", fired);
+        wheel.schedule(a, 45);
+        wheel.schedule(new RecordingTimer("b", fired), 500);
+        assertEquals(48, wheel.millisToNextExpiry(2));
+
+        // Cancelled timer can make wheel wake early but never late
+        wheel.cancel(a);
+        assertEquals(48, wheel.millisToNextExpiry(2));
+        wheel.advance(50);
+        assertEquals(List.of(), fired);
+        // Further than one turn of the wheel away - wake up a turn later to look again
+        assertEquals(90, wheel.millisToNextExpiry(50));
+
+        long now = 50;
+        while (fired.isEmpty()) {
+            now += wheel.millisToNextExpiry(now);
+            wheel.advance(now);
+        }
+        assertEquals(List.of("b@500"), fired);
+    }
+}
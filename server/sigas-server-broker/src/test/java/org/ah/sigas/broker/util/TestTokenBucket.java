@@ -0,0 +1,40 @@
+package org.ah.sigas.broker.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class TestTokenBucket {
+
+    @Test public void refillsAtRateUpToOneSecondWorth() {
+        TokenBucket bucket = new TokenBucket(10, 1000);
+
+        bucket.take(10, 1000);
+        assertFalse(bucket.canTake(1, 1000));
+        assertFalse(bucket.canTake(1, 1099));
+        assertTrue(bucket.canTake(1, 1100));
+
+        assertEquals(10, bucket.available(10000));
+    }
+
+    @Test public void debtIsRepaidBeforeAnythingElseCanBeTaken() {
+        TokenBucket bucket = new TokenBucket(1000, 0);
+
+        bucket.take(1500, 0);
+        assertEquals(-500, bucket.available(0));
+        assertEquals(500, bucket.millisToRepay(0));
+        assertEquals(0, bucket.millisToRepay(500));
+        assertFalse(bucket.canTake(1, 500));
+    }
+
+    @Test public void moreThanBucketHoldsCanBeTakenOnlyFromFullBucket() {
+        TokenBucket bucket = new TokenBucket(1000, 0);
+
+        assertTrue(bucket.canTake(1500, 0));
+        bucket.take(1, 0);
+        assertFalse(bucket.canTake(1500, 0));
+        assertTrue(bucket.canTake(1500, 1));
+    }
+}
@@ -2,20 +2,25 @@ package org.ah.sigas.json;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.util.function.Consumer;
 
 import org.ah.sigas.broker.Broker;
+import org.ah.sigas.broker.BusyPoll;
 import org.junit.Test;
 
 public class TestStreamingMessages {
@@ -23,66 +28,61 @@ public class TestStreamingMessages {
     public static final String CRLF = "\r\n";
 
     @Test public void testSendingMessages() throws IOException, URISyntaxException, InterruptedException, NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
+        sendMessages(broker -> {});
+    }
 
-        ServerSocket serverSocket = new ServerSocket(0);
-        int serverPort = serverSocket.getLocalPort();
-        serverSocket.close();
+    @Test public void testSendingMessagesWithMultipleReactors() throws IOException, URISyntaxException, InterruptedException, NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
+        sendMessages(broker -> broker.setReactorCount(4));
+    }
 
-        ServerSocket internalSocket = new ServerSocket(0);
-        int internalPort = internalSocket.getLocalPort();
-        internalSocket.close();
+    @Test public void testSendingMessagesWithReusedPort() throws IOException, URISyntaxException, InterruptedException, NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
+        sendMessages(broker -> {
+            broker.setReactorCount(3);
+            broker.setReusePort(true);
+        });
+    }
 
-        URI hubURI = new URI("http://localhost:8080");
+    @Test public void testSendingMessagesWithBusyPoll() throws IOException, URISyntaxException, InterruptedException, NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
+        sendMessages(broker -> broker.setBusyPoll(new BusyPoll(100, 10, 1)));
+    }
 
-        Broker broker = new Broker(serverPort, internalPort, hubURI);
+    @Test public void testSendingPastSlowRecipient() throws IOException, URISyntaxException, InterruptedException {
+        sendPastSlowRecipient(broker -> {});
+    }
 
-        Thread brokerThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                broker.loop();
+    @Test public void testSendingMessagesWithTicks() throws IOException, URISyntaxException, InterruptedException, NoSuchFieldException, SecurityException, IllegalArgumentException, IllegalAccessException {
+        sendMessages(broker -> {}, "{ \"tick_hz\": 30 }");
+    }
+
+    private static void waitForPort(int port) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (true) {
+            try {
+                new Socket("localhost", port).close();
+                return;
+            } catch (IOException e) {
+                if (System.currentTimeMillis() > deadline) {
+                    fail("Broker did not start listening on port " + port);
+                }
+                Thread.sleep(10);
             }
-        });
-        brokerThread.start();
-        Thread.sleep(10);
+        }
+    }
 
+    public static void sendMessages(Consumer<Broker> brokerSetup) throws IOException, URISyntaxException, InterruptedException {
+        sendMessages(brokerSetup, null);
+    }
+
+    public static void sendMessages(Consumer<Broker> brokerSetup, String gameOptions) throws IOException, URISyntaxException, InterruptedException {
+        Broker broker = startBroker(brokerSetup);
+        int serverPort = broker.getServerPort();
         try {
 
             String gameId = "123";
             String masterToken = "1234";
-            String clientToken = "1235";
-
-            assertEquals(204, sendHttpPostRequest(
-                    gameId,
-                    "POST",
-                    internalPort,
-                    "/game/" + gameId,
-                    """
-                    {
-                        "master_token": "1234",
-                        "client_id": "01",
-                        "alias": "game_master"
-                    }
-                    """).getResponseCode());
-
-            assertEquals(204, sendHttpPostRequest(
-                    gameId,
-                    "POST",
-                    internalPort,
-                    "/game/" + gameId + "/client",
-                    """
-                    {
-                        "token": "1235",
-                        "client_id": "02",
-                        "alias": "player1"
-                    }
-                    """).getResponseCode());
+            String clientToken = "1202";
 
-            assertEquals(204, sendHttpPostRequest(
-                    gameId,
-                    "PUT",
-                    internalPort,
-                    "/game/" + gameId + "/start",
-                    "").getResponseCode());
+            createGame(broker, gameId, gameOptions, "02");
 
             URL url = new URI("http://localhost:" + serverPort + "/game/stream/" + gameId).toURL();
             HttpURLConnection connection = (HttpURLConnection) url.openConnection();
@@ -158,6 +158,145 @@ public class TestStreamingMessages {
         }
     }
 
+    private static Broker startBroker(Consumer<Broker> brokerSetup) throws IOException, URISyntaxException, InterruptedException {
+        ServerSocket serverSocket = new ServerSocket(0);
+        int serverPort = serverSocket.getLocalPort();
+        serverSocket.close();
+
+        ServerSocket internalSocket = new ServerSocket(0);
+        int internalPort = internalSocket.getLocalPort();
+        internalSocket.close();
+
+        URI hubURI = new URI("http://localhost:8080");
+
+        Broker broker = new Broker(serverPort, internalPort, hubURI);
+        brokerSetup.accept(broker);
+
+        Thread brokerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                broker.loop();
+            }
+        });
+        brokerThread.start();
+        waitForPort(serverPort);
+        waitForPort(internalPort);
+        return broker;
+    }
+
+    /**
+     * Creates and starts game with master token 1234 and players whose tokens are "12" followed by their ids.
+     */
+    private static void createGame(Broker broker, String gameId, String gameOptions, String... clientIds) throws IOException, URISyntaxException {
+        int internalPort = broker.getInternalPort();
+        assertEquals(204, sendHttpPostRequest(
+                gameId,
+                "POST",
+                internalPort,
+                "/game/" + gameId,
+                """
+                {
+                    "master_token": "1234",
+                    "client_id": "01",
+                    "alias": "game_master"%s
+                }
+                """.formatted(gameOptions != null ? ",\n\"options\": " + gameOptions : "")).getResponseCode());
+
+        for (int i = 0; i < clientIds.length; i++) {
+            assertEquals(204, sendHttpPostRequest(
+                    gameId,
+                    "POST",
+                    internalPort,
+                    "/game/" + gameId + "/client",
+                    """
+                    {
+                        "token": "12%s",
+                        "client_id": "%s",
+                        "alias": "player%d"
+                    }
+                    """.formatted(clientIds[i], clientIds[i], i + 1)).getResponseCode());
+        }
+
+        assertEquals(204, sendHttpPostRequest(
+                gameId,
+                "PUT",
+                internalPort,
+                "/game/" + gameId + "/start",
+                "").getResponseCode());
+    }
+
+    /**
+     * Master floods a client which never reads its stream and then sends one message to another client.
+     * That message must get through while broker is still stuck writing to the first client.
+     */
+    public static void sendPastSlowRecipient(Consumer<Broker> brokerSetup) throws IOException, URISyntaxException, InterruptedException {
+        Broker broker = startBroker(brokerSetup);
+        int serverPort = broker.getServerPort();
+        try {
+            String gameId = "124";
+            createGame(broker, gameId, "{ \"outbound_max_bytes\": 262144 }", "02", "03");
+
+            try (
+                    Socket slowSocket = new Socket();
+                    Socket masterSocket = new Socket("127.0.0.1", serverPort);
+                ) {
+                slowSocket.setReceiveBufferSize(4096);
+                slowSocket.connect(new InetSocketAddress("127.0.0.1", serverPort));
+                PrintStream slowOut = new PrintStream(slowSocket.getOutputStream());
+                slowOut.print("GET /game/stream/" + gameId + " HTTP/1.1" + CRLF);
+                slowOut.print("Host: localhost:" + serverPort + CRLF);
+                slowOut.print("Authorization: Token 1202" + CRLF);
+                slowOut.print(CRLF);
+                slowOut.flush();
+
+                URL url = new URI("http://localhost:" + serverPort + "/game/stream/" + gameId).toURL();
+                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                connection.setRequestProperty("Authorization", "Token 1203");
+                connection.setRequestMethod("GET");
+                connection.setReadTimeout(5000);
+                connection.connect();
+                try (InputStream inputStream = connection.getInputStream()) {
+                    PrintStream out = new PrintStream(masterSocket.getOutputStream());
+                    out.print("POST /game/stream/" + gameId + " HTTP/1.1" + CRLF);
+                    out.print("Host: localhost:" + serverPort + CRLF);
+                    out.print("Transfer-Encoding: chunked" + CRLF);
+                    out.print("Authorization: Token 1234" + CRLF);
+                    out.print(CRLF);
+                    out.flush();
+
+                    // Far more than socket buffers of the client which does not read take; sent from other
+                    // thread as broker may stop reading master's stream when it is stuck
+                    Thread masterThread = new Thread(() -> {
+                        ByteBuffer dataBuffer = ByteBuffer.allocate(12 + 65536);
+                        dataBuffer.put("DATA  02".getBytes());
+                        dataBuffer.putInt(65536);
+                        for (int i = 0; i < 256; i++) {
+                            sendMessage(out, dataBuffer);
+                        }
+
+                        ByteBuffer doneBuffer = ByteBuffer.allocate(12);
+                        doneBuffer.put("DONE  03".getBytes());
+                        doneBuffer.putInt(0);
+                        sendMessage(out, doneBuffer);
+                    });
+                    masterThread.setDaemon(true);
+                    masterThread.start();
+
+                    while (true) {
+                        byte[] message = loadBuffer(inputStream);
+                        if (new String(message, 0, 4).equals("DONE")) {
+                            break;
+                        }
+                    }
+                } catch (SocketTimeoutException e) {
+                    fail("Message stuck behind client which does not read");
+                }
+            }
+        } finally {
+            broker.stop();
+        }
+    }
+
     private static byte[] loadBuffer(InputStream is) throws IOException {
         byte[] buf = new byte[12];
         int p = 0;
@@ -187,7 +326,7 @@ public class TestStreamingMessages {
         out.flush();
     }
 
-    private HttpURLConnection sendHttpPostRequest(String gameId, String method, int port, String path, String body) throws URISyntaxException, IOException {
+    private static HttpURLConnection sendHttpPostRequest(String gameId, String method, int port, String path, String body) throws URISyntaxException, IOException {
         URL url = new URI("http://localhost:" + port + path).toURL();
         HttpURLConnection connection = (HttpURLConnection) url.openConnection();
         connection.setDoOutput(true);
@@ -0,0 +1,15 @@
+package org.ah.sigas.broker.uring;
+
+import static org.junit.Assume.assumeTrue;
+
+import org.ah.sigas.json.TestStreamingMessages;
+import org.junit.Test;
+
+public class TestIoUringEngine {
+
+    @Test public void testSendingMessages() throws Exception {
+        assumeTrue("io_uring is not available", IoUringEngine.isAvailable());
+
+        TestStreamingMessages.sendMessages(broker -> broker.setEngine(new IoUringEngine(broker, 64)));
+    }
+}
@@ -0,0 +1,15 @@
+package org.ah.sigas.broker.vt;
+
+import org.ah.sigas.json.TestStreamingMessages;
+import org.junit.Test;
+
+public class TestVirtualThreadEngine {
+
+    @Test public void testSendingMessages() throws Exception {
+        TestStreamingMessages.sendMessages(broker -> broker.setEngine(new VirtualThreadEngine(broker)));
+    }
+
+    @Test public void testSendingPastSlowRecipient() throws Exception {
+        TestStreamingMessages.sendPastSlowRecipient(broker -> broker.setEngine(new VirtualThreadEngine(broker)));
+    }
+}